@@ -0,0 +1,60 @@
+package chat;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Server state for the benchmarks: a history directory under the temp dir and members whose
+// connections drop every frame, so a benchmark measures the server's side of a send only.
+final class BenchSupport {
+    static final ChatServer.Connection DISCARD = new ChatServer.Connection() {
+        public void send(Frame frame) {}
+
+        public int queued() {
+            return 0;
+        }
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+    };
+
+    private static SSLContext tls;
+
+    private BenchSupport() {}
+
+    // A self-signed localhost key from keytool, trusted by the same context on the client side
+    static synchronized SSLContext tls() throws IOException, InterruptedException {
+        if (tls != null) return tls;
+        Path keystore = Files.createTempDirectory("chat-bench").resolve("chat.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=localhost", "-keystore", keystore.toString(), "-storetype", "PKCS12",
+                "-storepass", "changeit").inheritIO().start();
+        if (keytool.waitFor() != 0) throw new IOException("keytool failed");
+        tls = TlsChannel.context(keystore, "changeit".toCharArray());
+        return tls;
+    }
+
+    static synchronized void init() throws IOException {
+        if (ChatServer.lobby != null) return;
+        ChatServer.historyDir = Files.createTempDirectory("chat-bench");
+        ChatServer.lobby = ChatServer.room(Room.LOBBY);
+    }
+
+    static Room room(String name) throws IOException {
+        init();
+        return ChatServer.room(name);
+    }
+
+    // Logged in and moved to the room
+    static ChatServer.ClientHandler member(String userName, Room room) {
+        ChatServer.ClientHandler client = new ChatServer.ClientHandler(DISCARD);
+        client.handleLine(userName);
+        if (room != ChatServer.lobby) client.handleLine("/join " + room.name);
+        return client;
+    }
+}
@@ -0,0 +1,47 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Room.broadcast: encoding the frame once and handing it to every member's connection, against
+// perRecipient, a sendMessage per member that encodes the line again for each of them as the
+// server did before. Run with -prof gc for the bytes allocated per broadcast.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1", "100", "1000"})
+    public int members;
+
+    private static final String LINE = "/msg 42 alice the quick brown fox jumps over the lazy dog";
+
+    private Room room;
+    private final List<ChatServer.ClientHandler> clients = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        room = BenchSupport.room("broadcast");
+        for (int i = 0; i < members; i++) {
+            clients.add(BenchSupport.member("user" + i, room));
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast(LINE);
+    }
+
+    @Benchmark
+    public void perRecipient() {
+        for (ChatServer.ClientHandler client : clients) {
+            client.sendMessage(LINE);
+        }
+    }
+}
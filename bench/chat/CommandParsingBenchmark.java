@@ -0,0 +1,113 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// One inbound line from the socket buffer to its command: line splitting and parsing into the
+// reused Command in InboundDecoder, then the opcode dispatch in ClientHandler.handle. Run with
+// -prof gc for the bytes allocated per line; /msg includes posting to a two member room.
+// parse and splitBaseline compare the parsing alone: in place over the bytes, against decoding
+// the line to a String and going down a startsWith chain to String.split, as handleLine did.
+// The Binary methods take the same command as a binary protocol frame: decoded and handled on a
+// client that negotiated it, parsed alone, and encoded on the client side against the text line.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParsingBenchmark {
+    @Param({"/typing start", "/react 1 👍 alice", "/pm bob see you at five", "/join parsing",
+            "/msg the quick brown fox jumps over the lazy dog"})
+    public String line;
+
+    private InboundDecoder decoder;
+    private ByteBuffer bytes;
+    private byte[] lineBytes;
+    private final Command command = new Command();
+    private InboundDecoder binaryDecoder;
+    private ByteBuffer frame;
+    private ByteBuffer frameBody;
+    private int bodyStart;
+
+    @Setup
+    public void setup() throws IOException {
+        Room room = BenchSupport.room("parsing");
+        ChatServer.ClientHandler alice = BenchSupport.member("alice", room);
+        BenchSupport.member("bob", room);
+        // Something to react to
+        room.post("bob", "hello");
+        decoder = new InboundDecoder(alice);
+        bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        lineBytes = line.getBytes(StandardCharsets.UTF_8);
+
+        // carol switches to binary frames the way a client does, through her decoder
+        ChatServer.ClientHandler carol = BenchSupport.member("carol", room);
+        binaryDecoder = new InboundDecoder(carol);
+        binaryDecoder.decode(ByteBuffer.wrap((BinaryCodec.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8)));
+        byte[] encoded = BinaryCodec.encodeClientLine(line);
+        frame = ByteBuffer.wrap(encoded);
+        bodyStart = 1;
+        while ((encoded[bodyStart - 1] & 0x80) != 0) bodyStart++;
+        frameBody = ByteBuffer.wrap(encoded);
+    }
+
+    @Benchmark
+    public boolean decodeAndHandle() {
+        return decoder.decode(bytes.duplicate());
+    }
+
+    @Benchmark
+    public boolean decodeAndHandleBinary() {
+        return binaryDecoder.decode(frame.duplicate());
+    }
+
+    @Benchmark
+    public boolean parseBinary() {
+        frameBody.position(bodyStart);
+        return command.parseBinary(frameBody) && command.complete();
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryCodec.encodeClientLine(line);
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return command.parseText(lineBytes, 0, lineBytes.length).complete();
+    }
+
+    @Benchmark
+    public String[] splitBaseline() {
+        return split(new String(lineBytes, StandardCharsets.UTF_8));
+    }
+
+    // The command words in the order handleLine tried them
+    private static String[] split(String message) {
+        if (message.startsWith("/join ")) return new String[] {message.substring(6).trim()};
+        if (message.equals("/leave") || message.startsWith("/leave ")) return new String[0];
+        if (message.equals("/users")) return new String[0];
+        if (message.startsWith("/typing ")) return new String[] {message.substring(8)};
+        if (message.startsWith("/pm ")) return message.split(" ", 3);
+        if (message.startsWith("/filestart ")) return message.split(" ", 4);
+        if (message.startsWith("/filechunk ")) return message.split(" ", 3);
+        if (message.startsWith("/fileend ")) return new String[] {message.substring(9)};
+        if (message.startsWith("/fileabort ")) return new String[] {message.substring(11)};
+        if (message.startsWith("/fetch ")) return new String[] {message.substring(7)};
+        if (message.startsWith("/file ")) return new String[] {message};
+        if (message.startsWith("/history ")) return message.split(" ");
+        if (message.startsWith("/react ")) return message.split(" ", 4);
+        if (message.startsWith("/msg ")) return new String[] {message.substring(5)};
+        return new String[] {message};
+    }
+}
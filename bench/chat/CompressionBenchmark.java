@@ -0,0 +1,107 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+// Cost and ratio of the per-connection deflate stream on typical traffic: time per record, and in
+// the secondary results the plain and wire bytes per op (wire / plain is the ratio). "off" sends
+// every record RAW, the baseline for what compression costs; upload is base64 of random bytes,
+// i.e. an already compressed file.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int SAMPLES = 256;
+
+    @Param({"chat", "users", "upload"})
+    public String traffic;
+
+    @Param({"off", "threshold", "always"})
+    public String compression;
+
+    // Lines per batch, i.e. per record: one for a quiet room, more under load
+    @Param({"1", "16"})
+    public int batch;
+
+    private byte[][] lines;
+    private byte[] plain;
+    private Compression.Compressor compressor;
+    private int next;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long plainBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            plainBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new byte[SAMPLES][];
+        for (int i = 0; i < SAMPLES; i++) {
+            lines[i] = line(random, i).getBytes(StandardCharsets.UTF_8);
+        }
+        plain = new byte[1 << 20];
+        int threshold = switch (compression) {
+            case "off" -> Integer.MAX_VALUE;
+            case "threshold" -> Compression.THRESHOLD;
+            default -> 0;
+        };
+        compressor = new Compression.Compressor(Deflater.DEFAULT_COMPRESSION, threshold);
+    }
+
+    private String line(Random random, int i) {
+        switch (traffic) {
+            case "chat":
+                return "/msg " + (1000 + i) + " user" + random.nextInt(30) + " "
+                        + "some ordinary chat text, message " + i + " about the build\n";
+            case "users": {
+                StringBuilder users = new StringBuilder("/users");
+                for (int u = 0; u < 200; u++) {
+                    users.append(' ').append("user").append(u == i % 200 ? 1000 + i : u);
+                }
+                return users.append('\n').toString();
+            }
+            default: {
+                byte[] chunk = new byte[4096];
+                random.nextBytes(chunk);
+                return "/filechunk up" + i + " " + Base64.getEncoder().encodeToString(chunk) + "\n";
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        compressor.end();
+    }
+
+    @Benchmark
+    public ByteBuffer record(Bytes bytes) {
+        int length = 0;
+        for (int i = 0; i < batch; i++) {
+            byte[] line = lines[next++ & (SAMPLES - 1)];
+            System.arraycopy(line, 0, plain, length, line.length);
+            length += line.length;
+        }
+        ByteBuffer record = compressor.record(plain, 0, length);
+        bytes.plainBytes += length;
+        bytes.wireBytes += record.remaining();
+        return record;
+    }
+}
@@ -0,0 +1,22 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// ChatClient.parseEmojis on every outgoing message and every line shown
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EmojiBenchmark {
+    @Param({"see you at five, bring the slides", "great work :thumbs_up: :smile: :heart: :laugh:"})
+    public String message;
+
+    @Benchmark
+    public String parseEmojis() {
+        return ChatClient.parseEmojis(message);
+    }
+}
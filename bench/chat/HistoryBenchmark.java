@@ -0,0 +1,40 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// One history page: from the in-memory ring for recent messages, from the mapped log for older ones
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int MESSAGES = 5000;
+    private static final int PAGE = 50;
+
+    @Param({"ring", "log"})
+    public String source;
+
+    private Room room;
+    private int beforeId;
+
+    @Setup
+    public void setup() throws IOException {
+        room = BenchSupport.room("history");
+        for (int i = 0; i < MESSAGES; i++) {
+            room.post("user" + (i % 20), "message number " + i + " with some ordinary chat text in it");
+            if (i % 5 == 0) room.react(i + 1, "👍", "user" + (i % 7));
+        }
+        beforeId = source.equals("ring") ? MESSAGES + 1 : MESSAGES / 4;
+    }
+
+    @Benchmark
+    public void sendHistoryPage(Blackhole blackhole) {
+        room.sendHistoryPage(blackhole::consume, beforeId, PAGE);
+    }
+}
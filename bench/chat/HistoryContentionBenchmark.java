@@ -0,0 +1,83 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+// Many senders posting into one room's history at once: claim an id, publish the message and
+// drain it, against the synchronized LinkedList and counter the server used before the ring.
+// The drain's sink does nothing, so this is the id and history handoff alone, without the log.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryContentionBenchmark {
+    private static final int CAPACITY = 1024;
+
+    private HistoryRing ring;
+    private LinkedList<String> list;
+    private int nextId;
+
+    // Fresh per iteration, so ids never run out however fast it goes
+    @Setup(Level.Iteration)
+    public void setup() {
+        ring = new HistoryRing(CAPACITY, 1);
+        list = new LinkedList<>();
+        nextId = 1;
+    }
+
+    private int postRing() {
+        int id = ring.claim();
+        ring.publish(id, "/msg " + id + " alice hello everyone");
+        ring.drain(entry -> {});
+        return id;
+    }
+
+    private int postSynchronized() {
+        synchronized (list) {
+            int id = nextId++;
+            list.add("/msg " + id + " alice hello everyone");
+            if (list.size() > CAPACITY) list.removeFirst();
+            return id;
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int ring8() {
+        return postRing();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public int ring32() {
+        return postRing();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public int ring128() {
+        return postRing();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int synchronized8() {
+        return postSynchronized();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public int synchronized32() {
+        return postSynchronized();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public int synchronized128() {
+        return postSynchronized();
+    }
+}
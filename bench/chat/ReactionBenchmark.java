@@ -0,0 +1,73 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Reaction counting: a new reaction (counted and logged), a repeated one (ignored), and building
+// the per-message totals line that a flush sends out
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReactionBenchmark {
+    private static final int MESSAGES = 512;
+    private static final String[] EMOJIS = {"👍", "❤️", "😂"};
+
+    private Room room;
+    private Map<String, Set<String>> totals;
+    private int iteration;
+    private int next;
+
+    // A fresh room per iteration, so the reaction sets don't keep growing across the run
+    @Setup(Level.Iteration)
+    public void newRoom() throws IOException {
+        room = BenchSupport.room("reactions" + iteration++);
+        for (int i = 0; i < MESSAGES; i++) {
+            room.post("alice", "message " + i);
+        }
+        room.react(1, EMOJIS[0], "bob");
+    }
+
+    @Setup
+    public void setup() {
+        totals = new HashMap<>();
+        for (String emoji : EMOJIS) {
+            Set<String> users = ConcurrentHashMap.newKeySet();
+            for (int i = 0; i < 50; i++) users.add("user" + i);
+            totals.put(emoji, users);
+        }
+    }
+
+    @Benchmark
+    public void reactNew() {
+        int n = next++;
+        room.react(n % MESSAGES + 1, EMOJIS[n % EMOJIS.length], "user" + n);
+    }
+
+    @Benchmark
+    public void reactRepeated() {
+        room.react(1, EMOJIS[0], "bob");
+    }
+
+    // A burst of reactions spread over a few messages, sent out as one totals line each
+    @Benchmark
+    public void burstThenFlush() {
+        for (int i = 0; i < 16; i++) {
+            reactNew();
+        }
+        room.flushReactions();
+    }
+
+    @Benchmark
+    public String totalsLine() {
+        return Room.reactionsLine(1, totals);
+    }
+}
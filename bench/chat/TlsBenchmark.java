@@ -0,0 +1,180 @@
+package chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// TLS against plain connections on loopback. write: the server side of a client connection
+// writing a batch of frames, as FrameWriter does, while a client thread reads them. connect:
+// connections a second one server thread takes, each a handshake (full or resumed from the
+// client's cached session) and a one-byte round trip.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Writer {
+        // chat: 64 chat lines per write, file: 4 x 16 KB of a download
+        @Param({"chat", "file"})
+        public String payload;
+
+        @Param({"plain", "tls"})
+        public String transport;
+
+        private ServerSocketChannel server;
+        private Socket client;
+        private SocketChannel socket;
+        private GatheringByteChannel channel;
+        private ByteBuffer[] batch;
+
+        @Setup
+        public void setup() throws Exception {
+            SSLContext context = transport.equals("tls") ? BenchSupport.tls() : null;
+            server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            int port = server.socket().getLocalPort();
+            Thread reader = new Thread(() -> {
+                try {
+                    client = context != null ? context.getSocketFactory().createSocket("localhost", port)
+                            : new Socket("localhost", port);
+                    InputStream in = client.getInputStream();
+                    byte[] discard = new byte[64 * 1024];
+                    while (in.read(discard) >= 0) {
+                        // Just drains
+                    }
+                } catch (IOException e) {
+                    // Closed in tearDown
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            socket = server.accept();
+            socket.socket().setTcpNoDelay(true);
+            if (context != null) {
+                TlsChannel tls = TlsChannel.server(context, socket, Runnable::run, () -> {});
+                tls.handshake();
+                channel = tls;
+            } else {
+                channel = socket;
+            }
+
+            int count = payload.equals("chat") ? 64 : 4;
+            batch = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = payload.equals("chat")
+                        ? ("/msg " + (1000 + i) + " user" + i + " the quick brown fox jumps over the lazy dog\n").getBytes(StandardCharsets.UTF_8)
+                        : new byte[16 * 1024];
+                batch[i] = ByteBuffer.wrap(bytes);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+            server.close();
+            if (client != null) client.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connector {
+        @Param({"plain", "full", "resumed"})
+        public String handshake;
+
+        private SSLContext context;
+        private ServerSocketChannel server;
+        private Thread acceptor;
+        private int port;
+        private int connections;
+
+        @Setup
+        public void setup() throws Exception {
+            context = handshake.equals("plain") ? null : BenchSupport.tls();
+            server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            port = server.socket().getLocalPort();
+            acceptor = new Thread(this::accept);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        // One connection at a time: handshake, echo a byte, wait for the close
+        private void accept() {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            while (server.isOpen()) {
+                try (SocketChannel socket = server.accept()) {
+                    socket.socket().setTcpNoDelay(true);
+                    ReadableByteChannel in = socket;
+                    GatheringByteChannel out = socket;
+                    TlsChannel tls = null;
+                    if (context != null) {
+                        tls = TlsChannel.server(context, socket, Runnable::run, () -> {});
+                        tls.handshake();
+                        in = tls;
+                        out = tls;
+                    }
+                    buffer.clear();
+                    if (in.read(buffer) < 0) continue;
+                    out.write(buffer.flip());
+                    buffer.clear();
+                    while (in.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                    if (tls != null) tls.close();
+                } catch (IOException e) {
+                    // Next connection, or closed in tearDown
+                }
+            }
+        }
+
+        // A host name no other connection used has no cached session to resume
+        Socket connect() throws IOException {
+            Socket socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            if (context == null) return socket;
+            String host = handshake.equals("resumed") ? "localhost" : "full" + connections++;
+            return context.getSocketFactory().createSocket(socket, host, port, true);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public long write(Writer writer) throws IOException {
+        for (ByteBuffer buffer : writer.batch) {
+            buffer.clear();
+        }
+        long written = 0;
+        while (writer.batch[writer.batch.length - 1].hasRemaining()) {
+            written += writer.channel.write(writer.batch, 0, writer.batch.length);
+        }
+        return written;
+    }
+
+    @Benchmark
+    public int connect(Connector connector) throws IOException {
+        try (Socket socket = connector.connect()) {
+            OutputStream out = socket.getOutputStream();
+            out.write(1);
+            out.flush();
+            // The session ticket comes before the echo, so it's cached once this returns
+            return socket.getInputStream().read();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Compact framing negotiated with "/proto binary" right after the username line.
+// Every frame is [varint length][opcode][fields], ints are varints and strings are
+// varint-length-prefixed UTF-8. Commands without an opcode of their own travel as TEXT.
+public final class BinaryCodec {
+    static final byte TEXT = 0;   // line: the text protocol line as-is
+    static final byte MSG = 1;    // client: text               server: id, user, text
+    static final byte PM = 2;     // client: target, text       server: sender, text
+    static final byte REACT = 3;  // id, emoji, user
+    static final byte TYPING = 4; // client: 1 start, 0 stop    server: users typing, space separated
+
+    static final String HANDSHAKE = "/proto binary";
+    static final int MAX_FRAME = 64 << 20;
+
+    private BinaryCodec() {}
+
+    // Server to client, called once per frame however many binary clients receive it
+    static byte[] encodeServerLine(String line) {
+        try {
+            if (line.startsWith("/msg ")) {
+                int idEnd = line.indexOf(' ', 5);
+                int userEnd = idEnd < 0 ? -1 : line.indexOf(' ', idEnd + 1);
+                if (userEnd > 0) {
+                    return new Writer(MSG)
+                            .varint(Integer.parseInt(line, 5, idEnd, 10))
+                            .string(line.substring(idEnd + 1, userEnd))
+                            .string(line.substring(userEnd + 1))
+                            .finish();
+                }
+            } else if (line.startsWith("/pm ")) {
+                int senderEnd = line.indexOf(' ', 4);
+                if (senderEnd > 0) {
+                    return new Writer(PM).string(line.substring(4, senderEnd)).string(line.substring(senderEnd + 1)).finish();
+                }
+            } else if (line.startsWith("/react ")) {
+                byte[] react = encodeReact(line);
+                if (react != null) return react;
+            } else if (line.startsWith("/typing ")) {
+                return new Writer(TYPING).string(line.substring(8)).finish();
+            }
+        } catch (NumberFormatException e) {
+            // Not something we can compact, send it as text
+        }
+        return new Writer(TEXT).string(line).finish();
+    }
+
+    // Client to server
+    static byte[] encodeClientLine(String line) {
+        try {
+            if (line.startsWith("/msg ")) {
+                return new Writer(MSG).string(line.substring(5)).finish();
+            } else if (line.startsWith("/pm ")) {
+                int targetEnd = line.indexOf(' ', 4);
+                if (targetEnd > 0) {
+                    return new Writer(PM).string(line.substring(4, targetEnd)).string(line.substring(targetEnd + 1)).finish();
+                }
+            } else if (line.startsWith("/react ")) {
+                byte[] react = encodeReact(line);
+                if (react != null) return react;
+            } else if (line.startsWith("/typing ")) {
+                return new Writer(TYPING).varint(line.endsWith(" stop") ? 0 : 1).finish();
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to text
+        }
+        return new Writer(TEXT).string(line).finish();
+    }
+
+    // Format: /react messageId emoji username
+    private static byte[] encodeReact(String line) {
+        int idEnd = line.indexOf(' ', 7);
+        int emojiEnd = idEnd < 0 ? -1 : line.indexOf(' ', idEnd + 1);
+        if (emojiEnd < 0) return null;
+        return new Writer(REACT)
+                .varint(Integer.parseInt(line, 7, idEnd, 10))
+                .string(line.substring(idEnd + 1, emojiEnd))
+                .string(line.substring(emojiEnd + 1))
+                .finish();
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        if (length > in.remaining()) throw new IllegalArgumentException("Truncated string");
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static final class Writer {
+        private byte[] buf = new byte[32];
+        private int pos;
+
+        Writer(byte opcode) {
+            buf[pos++] = opcode;
+        }
+
+        Writer varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+            return this;
+        }
+
+        Writer string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+            return this;
+        }
+
+        // Prepends the length prefix
+        byte[] finish() {
+            int prefix = 1;
+            for (int v = pos; (v & ~0x7F) != 0; v >>>= 7) prefix++;
+            byte[] frame = new byte[prefix + pos];
+            int i = 0;
+            int v = pos;
+            while ((v & ~0x7F) != 0) {
+                frame[i++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            frame[i++] = (byte) v;
+            System.arraycopy(buf, 0, frame, i, pos);
+            return frame;
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+}
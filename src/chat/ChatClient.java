@@ -0,0 +1,886 @@
+package chat;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.swing.*;
+import javax.swing.Timer;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.List;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChatClient extends JFrame {
+    private MessageList messages;
+    private JTextField inputField;
+    private JButton sendButton, fileButton, themeButton;
+    private JList<String> userList;
+    private DefaultListModel<String> userListModel;
+    private OutputStream out;
+    private DataInputStream in;
+    // Binary protocol: we switch as soon as we've asked, the server after its ack
+    private static boolean useBinary = true;
+    private boolean binary;
+    // Deflate, opt-in: our side compresses right after asking, the server's after its ack
+    private static boolean useCompression;
+    // Set with --tls-keystore, to trust the server's certificate in it
+    private static SSLContext tls;
+    private Compression.RecordOutputStream compressedOut;
+    private byte[] lineBuffer = new byte[256];
+    private String userName;
+    private JLabel typingLabel;
+    // Typing is sent as a start, refreshed every TYPING_REFRESH_MS while keys keep coming, and a
+    // stop after TYPING_IDLE_MS without one; the server sends back who is typing (EDT only)
+    private static final int TYPING_REFRESH_MS = 2000;
+    private static final int TYPING_IDLE_MS = 3000;
+    private boolean typing;
+    private long typingSentAt;
+    private javax.swing.Timer typingIdle;
+
+    // Message id -> reactions (emoji -> count), replaced by each /reactions from the server
+    private Map<Integer, Map<String, Integer>> reactionsMap = new HashMap<>();
+
+    // History comes in pages, older ones are requested when the user scrolls to the top
+    private static final int HISTORY_PAGE = 50;
+    private JScrollPane chatScroll;
+    // Messages of the page being received, null outside a page (reader thread only)
+    private List<HistoryEntry> page;
+    // Oldest message id shown, nothing older to load while <= 1 (EDT only)
+    private int oldestLoadedId;
+    private boolean loadingHistory;
+
+    private static final Map<String, String> EMOJI_MAP = Map.of(
+            ":smile:", "\uD83D\uDE04",
+            ":heart:", "\u2764\uFE0F",
+            ":thumbs_up:", "\uD83D\uDC4D",
+            ":laugh:", "\uD83D\uDE02"
+    );
+    private static final List<String> REACTION_EMOJIS = List.of("\uD83D\uDC4D", "\u2764\uFE0F", "\uD83D\uDE02");
+
+    // What the reader thread has for the screen is queued and applied in one batch per frame:
+    // one list update and at most one scroll, however many lines came in
+    private static final int FRAME_MS = 16;
+    private final Queue<Runnable> uiUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean uiScheduled = new AtomicBoolean();
+    private javax.swing.Timer uiFrame;
+    private boolean scrollAfterBatch; // EDT only
+    // Only the newest typing line matters, older ones in the same frame are skipped
+    private final AtomicReference<String> pendingTyping = new AtomicReference<>();
+    // Room members: a "/users version ..." list, then "/presence version +user -user" changes on
+    // top of it. Version of the last one applied, -1 until the room's list came (reader thread only)
+    private int presenceVersion = -1;
+    private final Set<String> shownUsers = new HashSet<>(); // EDT only, what the list model holds
+
+    // Theme
+    private boolean darkMode = false;
+
+    // A dropped connection comes back with "/resume token name", the server then sends only what
+    // we missed. It learns how far we got from an "/ack room msgId" at most every ACK_MS.
+    private static final int ACK_MS = 1000;
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    private final String serverAddress;
+    private final int port;
+    private volatile String sessionToken;
+    // Room shown and the newest live message in it, against what was last acked (guarded by this)
+    private String ackRoom;
+    private int seenId;
+    private int ackedId;
+
+    // Streamed file transfer: chunks of FILE_CHUNK_SIZE bytes, at most FILE_WINDOW unacked
+    private static final int FILE_CHUNK_SIZE = 48 * 1024;
+    private static final int FILE_WINDOW = 4;
+    private int nextTransferId = 1;
+    // Our transfer id -> free window slots
+    private final Map<String, Semaphore> outgoingFiles = new ConcurrentHashMap<>();
+    // Content hash -> names to save accepted files under, in fetch order
+    private final Map<String, Queue<String>> downloads = new ConcurrentHashMap<>();
+
+    public ChatClient(String serverAddress, int port) {
+        this.serverAddress = serverAddress;
+        this.port = port;
+        // Prompt for username
+        userName = JOptionPane.showInputDialog(this, "Enter your username:", "Username", JOptionPane.PLAIN_MESSAGE);
+        if (userName == null || userName.trim().isEmpty()) System.exit(0);
+
+        setTitle("Java Chat - " + userName);
+        setSize(800, 550);
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+
+        // Messages dropped off the top are fetched again as history when scrolled back to
+        messages = new MessageList(msgId -> {
+            reactionsMap.remove(msgId);
+            oldestLoadedId = Math.max(oldestLoadedId, msgId + 1);
+        });
+        messages.setFont(new Font(getEmojiFont(), Font.PLAIN, 16));
+        chatScroll = new JScrollPane(messages);
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValue() == 0 && !e.getValueIsAdjusting()) loadOlderHistory();
+        });
+
+        inputField = new JTextField();
+        sendButton = new JButton("Send");
+        fileButton = new JButton("Send File");
+        themeButton = new JButton("Dark Mode");
+
+        JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.add(fileButton, BorderLayout.WEST);
+        inputPanel.add(inputField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        JPanel topPanel = new JPanel(new BorderLayout());
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("SansSerif", Font.ITALIC, 12));
+        typingLabel.setForeground(Color.GRAY);
+        topPanel.add(typingLabel, BorderLayout.WEST);
+        topPanel.add(themeButton, BorderLayout.EAST);
+
+        userListModel = new DefaultListModel<>();
+        userList = new JList<>(userListModel);
+        userList.setPreferredSize(new Dimension(120, 0));
+        userList.setBorder(BorderFactory.createTitledBorder("Users"));
+
+        add(chatScroll, BorderLayout.CENTER);
+        add(inputPanel, BorderLayout.SOUTH);
+        add(userList, BorderLayout.EAST);
+        add(topPanel, BorderLayout.NORTH);
+
+        sendButton.addActionListener(e -> sendMessage());
+        inputField.addActionListener(e -> sendMessage());
+
+        uiFrame = new javax.swing.Timer(FRAME_MS, e -> applyUiBatch());
+        uiFrame.setRepeats(false);
+
+        // Typing indicator
+        typingIdle = new javax.swing.Timer(TYPING_IDLE_MS, e -> stopTyping());
+        typingIdle.setRepeats(false);
+        new javax.swing.Timer(ACK_MS, e -> sendAck()).start();
+        inputField.addKeyListener(new KeyAdapter() {
+            public void keyTyped(KeyEvent e) {
+                if (e.getKeyChar() == '\n') return;
+                long now = System.currentTimeMillis();
+                if (!typing || now - typingSentAt >= TYPING_REFRESH_MS) {
+                    send("/typing start");
+                    typing = true;
+                    typingSentAt = now;
+                }
+                typingIdle.restart();
+            }
+        });
+
+        // File sharing
+        fileButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File file = chooser.getSelectedFile();
+                String id = String.valueOf(nextTransferId++);
+                new Thread(() -> sendFile(id, file)).start();
+            }
+        });
+
+        // Theme toggle
+        themeButton.addActionListener(e -> {
+            darkMode = !darkMode;
+            updateTheme();
+        });
+
+        // Message reactions: right-click or double-click on a message
+        messages.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e) || e.getClickCount() == 2) {
+                    MessageList.Row row = messages.rowAt(e.getPoint());
+                    if (row != null && row.kind == MessageList.Kind.CHAT) {
+                        int msgId = row.msgId;
+                        String emoji = (String) JOptionPane.showInputDialog(
+                                ChatClient.this,
+                                "React to message:",
+                                "React",
+                                JOptionPane.PLAIN_MESSAGE,
+                                null,
+                                REACTION_EMOJIS.toArray(),
+                                REACTION_EMOJIS.get(0));
+                        if (emoji != null && !emoji.isEmpty()) {
+                            send("/react " + msgId + " " + emoji + " " + userName);
+                        }
+                    }
+                }
+            }
+        });
+
+        updateTheme();
+        setVisible(true);
+
+        try {
+            openConnection();
+            // Start thread to read messages
+            new Thread(this::readUntilClosed).start();
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Unable to connect to server.", "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+    }
+
+    // Username or resume line first, with the handshakes in the same packet
+    private synchronized void openConnection() throws IOException {
+        Socket socket = connect(serverAddress, port);
+        out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        binary = false;
+        compressedOut = null;
+        presenceVersion = -1;
+        page = null;
+
+        write(sessionToken == null ? userName : "/resume " + sessionToken + " " + userName);
+        if (useBinary) {
+            write(BinaryCodec.HANDSHAKE);
+            binary = true;
+        }
+        if (useCompression) {
+            write(Compression.HANDSHAKE);
+            compressedOut = new Compression.RecordOutputStream(out);
+            out = compressedOut;
+        }
+        flush();
+    }
+
+    // Reader thread: once the server gave us a session, a dropped connection is retried with
+    // backoff until it's back
+    private void readUntilClosed() {
+        while (true) {
+            try {
+                readMessages();
+            } catch (IOException ex) {
+                // Reconnected below, or reported
+            }
+            if (sessionToken == null) {
+                appendSystemMessage("Connection closed.");
+                return;
+            }
+            appendSystemMessage("Connection lost, reconnecting...");
+            failTransfers();
+            long delay = RECONNECT_MIN_MS;
+            while (true) {
+                try {
+                    Thread.sleep(delay);
+                    openConnection();
+                    break;
+                } catch (IOException ex) {
+                    delay = Math.min(delay * 2, RECONNECT_MAX_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Uploads don't survive the connection, the server dropped its half
+    private void failTransfers() {
+        for (String id : outgoingFiles.keySet()) {
+            Semaphore window = outgoingFiles.remove(id);
+            if (window != null) window.release(FILE_WINDOW);
+        }
+    }
+
+    // Timer: tells the server the newest message shown, if that changed
+    private synchronized void sendAck() {
+        if (ackRoom == null || seenId <= ackedId) return;
+        ackedId = seenId;
+        send("/ack " + ackRoom + " " + seenId);
+    }
+
+    // Reader thread, on /room and /resume: acks start over in the room, from what the server knows
+    private synchronized void ackFrom(String room, int msgId) {
+        if (!room.equals(ackRoom)) seenId = 0;
+        ackRoom = room;
+        ackedId = msgId;
+    }
+
+    private synchronized void seen(int msgId) {
+        if (msgId > seenId) seenId = msgId;
+    }
+
+    // Over TLS the certificate must be for the host we asked for
+    private static Socket connect(String host, int port) throws IOException {
+        if (tls == null) return new Socket(host, port);
+        SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+        SSLParameters params = socket.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(params);
+        return socket;
+    }
+
+    private void sendMessage() {
+        String msg = inputField.getText().trim();
+        if (!msg.isEmpty()) {
+            if (msg.startsWith("/pm ") || msg.startsWith("/file ") || msg.startsWith("/join ") || msg.equals("/leave")) {
+                write(msg);
+                stopTyping();
+                flush();
+            } else {
+                send("/msg " + parseEmojis(msg));
+                // The server clears typing on a message
+                typing = false;
+                typingIdle.stop();
+            }
+            inputField.setText("");
+        }
+    }
+
+    private synchronized void send(String line) {
+        write(line);
+        flush();
+    }
+
+    // Only buffers the line, it goes out with the next flush
+    private synchronized void write(String line) {
+        if (out == null) return;
+        try {
+            out.write(binary ? BinaryCodec.encodeClientLine(line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The reader thread reports the closed connection
+        }
+    }
+
+    // A line that wouldn't compress, sent in a record of its own when compression is on
+    private synchronized void writeUncompressed(String line) {
+        if (compressedOut == null) {
+            write(line);
+            return;
+        }
+        try {
+            compressedOut.writeRaw(binary ? BinaryCodec.encodeClientLine(line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The reader thread reports the closed connection
+        }
+    }
+
+    private synchronized void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // The reader thread reports the closed connection
+        }
+    }
+
+    // Streams the file in chunks; chat keeps flowing in between since every chunk is its own write.
+    // Chunks are flushed when the window runs out and at the end, not one by one.
+    private void sendFile(String id, File file) {
+        Semaphore window = new Semaphore(FILE_WINDOW);
+        outgoingFiles.put(id, window);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            write("/filestart " + id + " " + channel.size() + " " + file.getName());
+            ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+            // Media and archives are already compressed, the first chunk tells
+            Boolean compressible = null;
+            while (channel.read(chunk) > 0) {
+                chunk.flip();
+                if (compressible == null) {
+                    compressible = compressedOut == null || Compression.compressible(chunk.array(), chunk.limit());
+                }
+                if (!window.tryAcquire()) {
+                    // The server acks what it has seen, so everything written must go out first
+                    flush();
+                    window.acquire();
+                }
+                if (outgoingFiles.get(id) != window) throw new IOException("Connection lost");
+                ByteBuffer encoded = Base64.getEncoder().encode(chunk);
+                String line = "/filechunk " + id + " " + new String(encoded.array(), 0, encoded.limit(), StandardCharsets.US_ASCII);
+                if (compressible) {
+                    write(line);
+                } else {
+                    writeUncompressed(line);
+                }
+                chunk.clear();
+            }
+            if (outgoingFiles.get(id) != window) throw new IOException("Connection lost");
+            send("/fileend " + id);
+            appendSystemMessage("File sent: " + file.getName());
+        } catch (IOException | InterruptedException ex) {
+            send("/fileabort " + id);
+            appendSystemMessage("File send failed.");
+        } finally {
+            outgoingFiles.remove(id);
+        }
+    }
+
+    // The server only offers files; the bytes are pulled if the user accepts
+    private void offerFile(String hash, long size, String name) {
+        // Only the file name, never a path the sender chose
+        String fileName = Paths.get(name).getFileName().toString();
+        SwingUtilities.invokeLater(() -> {
+            int option = JOptionPane.showConfirmDialog(this,
+                    "Receive file: " + fileName + " (" + size + " bytes)?",
+                    "File Received", JOptionPane.YES_NO_OPTION);
+            if (option == JOptionPane.YES_OPTION) {
+                downloads.computeIfAbsent(hash, k -> new ConcurrentLinkedQueue<>()).add(fileName);
+                send("/fetch " + hash);
+            }
+        });
+    }
+
+    // Called on the reader thread right after the /filedata line: the next size bytes are the file
+    private void receiveFileData(String hash, long size) throws IOException {
+        Queue<String> names = downloads.get(hash);
+        String fileName = names == null ? null : names.poll();
+        Path temp = Files.createTempFile("chat-", ".part");
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            byte[] chunk = new byte[FILE_CHUNK_SIZE];
+            long remaining = size;
+            while (remaining > 0) {
+                int n = (int) Math.min(chunk.length, remaining);
+                in.readFully(chunk, 0, n);
+                digest.update(chunk, 0, n);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                remaining -= n;
+            }
+        }
+        if (fileName == null || !FileStore.hex(digest.digest()).equals(hash)) {
+            Files.deleteIfExists(temp);
+            if (fileName != null) appendSystemMessage("Failed to save file.");
+            return;
+        }
+        Files.move(temp, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+        appendSystemMessage("File saved: " + fileName);
+    }
+
+    private void readMessages() throws IOException {
+        String msg;
+        while ((msg = readLine()) != null) {
+            if (msg.equals(BinaryCodec.HANDSHAKE)) {
+                readBinaryFrames();
+                return;
+            }
+            handleServerMessage(msg);
+        }
+    }
+
+    private String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == lineBuffer.length) lineBuffer = Arrays.copyOf(lineBuffer, length * 2);
+            lineBuffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) return null;
+        if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void readBinaryFrames() throws IOException {
+        byte[] frame = new byte[256];
+        while (true) {
+            int length = readVarint();
+            if (length < 0) return;
+            if (length == 0 || length > BinaryCodec.MAX_FRAME) throw new IOException("Bad frame length " + length);
+            if (length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+            in.readFully(frame, 0, length);
+            try {
+                handleBinaryFrame(ByteBuffer.wrap(frame, 0, length));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Malformed frame", e);
+            }
+        }
+    }
+
+    // Returns -1 at end of stream
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (shift == 0) return -1;
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private void handleBinaryFrame(ByteBuffer frame) throws IOException {
+        switch (frame.get()) {
+            case BinaryCodec.MSG:
+                appendChatMessage(BinaryCodec.readVarint(frame), BinaryCodec.readString(frame), BinaryCodec.readString(frame));
+                break;
+            case BinaryCodec.PM:
+                appendPrivateMessage(BinaryCodec.readString(frame), BinaryCodec.readString(frame));
+                break;
+            case BinaryCodec.TYPING:
+                showTyping(BinaryCodec.readString(frame));
+                break;
+            case BinaryCodec.TEXT:
+                handleServerMessage(BinaryCodec.readString(frame));
+                break;
+        }
+    }
+
+    private void handleServerMessage(String msg) throws IOException {
+        if (msg.equals(Compression.HANDSHAKE)) {
+            // Everything after the ack comes in records; the old stream keeps what it already buffered
+            in = new DataInputStream(new BufferedInputStream(new Compression.RecordInputStream(in)));
+        } else if (msg.startsWith("/session ")) {
+            sessionToken = msg.substring(9);
+        } else if (msg.startsWith("/room ")) {
+            String room = msg.substring(6);
+            presenceVersion = -1;
+            ackFrom(room, 0);
+            onEdt(() -> enterRoom(room));
+        } else if (msg.startsWith("/resume ")) {
+            // Format: /resume room fromId, the messages from fromId on follow
+            String[] parts = msg.split(" ");
+            if (parts.length == 3) {
+                String room = parts[1];
+                int fromId = Integer.parseInt(parts[2]);
+                ackFrom(room, fromId - 1);
+                onEdt(() -> resumeRoom(room, fromId));
+            }
+        } else if (msg.startsWith("/historypage ")) {
+            page = new ArrayList<>();
+        } else if (msg.startsWith("/historyend ")) {
+            // Format: /historyend beforeId oldestId
+            String[] parts = msg.split(" ");
+            if (page != null && parts.length == 3) {
+                List<HistoryEntry> entries = page;
+                int oldestId = Integer.parseInt(parts[2]);
+                onEdt(() -> insertHistoryPage(entries, oldestId));
+            }
+            page = null;
+        } else if (msg.startsWith("/reactions ")) {
+            // Format: /reactions msgId emoji count [emoji count ...]
+            String[] parts = msg.split(" ");
+            int msgId = Integer.parseInt(parts[1]);
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (int i = 2; i + 1 < parts.length; i += 2) {
+                counts.put(parts[i], Integer.parseInt(parts[i + 1]));
+            }
+            onEdt(() -> {
+                reactionsMap.put(msgId, counts);
+                updateReactionsDisplay(msgId);
+            });
+        } else if (msg.startsWith("/msg ")) {
+            // Format: /msg msgId username message
+            String[] parts = msg.split(" ", 4);
+            if (parts.length == 4) {
+                int msgId = Integer.parseInt(parts[1]);
+                String sender = parts[2];
+                String message = parts[3];
+                appendChatMessage(msgId, sender, message);
+            }
+        } else if (msg.startsWith("/notify ")) {
+            appendSystemMessage(msg.substring(8));
+        } else if (msg.startsWith("/users ")) {
+            // Format: /users version user1 user2 ...
+            String[] parts = msg.split(" ");
+            presenceVersion = Integer.parseInt(parts[1]);
+            List<String> users = Arrays.asList(parts).subList(2, parts.length);
+            onEdt(() -> showUsers(users));
+        } else if (msg.startsWith("/presence ")) {
+            // Format: /presence version +joined -left ...
+            String[] parts = msg.split(" ");
+            int version = Integer.parseInt(parts[1]);
+            if (presenceVersion < 0 || version <= presenceVersion) return;
+            if (version != presenceVersion + 1) {
+                // Missed one, start over from a fresh list
+                presenceVersion = -1;
+                send("/users");
+                return;
+            }
+            presenceVersion = version;
+            List<String> changes = Arrays.asList(parts).subList(2, parts.length);
+            onEdt(() -> updateUsers(changes));
+        } else if (msg.startsWith("/error ")) {
+            JOptionPane.showMessageDialog(this, msg.substring(7), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        } else if (msg.startsWith("/pm ")) {
+            int firstSpace = msg.indexOf(' ', 4);
+            if (firstSpace > 0) {
+                String sender = msg.substring(4, firstSpace);
+                String message = msg.substring(firstSpace + 1);
+                appendPrivateMessage(sender, message);
+            }
+        } else if (msg.startsWith("/fileoffer ")) {
+            // Format: /fileoffer hash size name
+            String[] parts = msg.split(" ", 4);
+            if (parts.length == 4) {
+                offerFile(parts[1], Long.parseLong(parts[2]), parts[3]);
+            }
+        } else if (msg.startsWith("/filedata ")) {
+            // Format: /filedata hash size, followed by size raw bytes
+            String[] parts = msg.split(" ", 3);
+            if (parts.length == 3) {
+                receiveFileData(parts[1], Long.parseLong(parts[2]));
+            }
+        } else if (msg.startsWith("/fileack ")) {
+            Semaphore window = outgoingFiles.get(msg.substring(9));
+            if (window != null) window.release();
+        } else if (msg.startsWith("/file ")) {
+            // Whole-file transfer from older clients
+            String[] parts = msg.split(" ", 3);
+            if (parts.length == 3) {
+                String filename = parts[1];
+                byte[] data = Base64.getDecoder().decode(parts[2]);
+                SwingUtilities.invokeLater(() -> {
+                    int option = JOptionPane.showConfirmDialog(this,
+                            "Receive file: " + filename + " (" + data.length + " bytes)?",
+                            "File Received", JOptionPane.YES_NO_OPTION);
+                    if (option == JOptionPane.YES_OPTION) {
+                        try {
+                            Files.write(Paths.get(filename), data);
+                            appendSystemMessage("File saved: " + filename);
+                        } catch (IOException ex) {
+                            appendSystemMessage("Failed to save file.");
+                        }
+                    }
+                });
+            }
+        } else if (msg.startsWith("/typing ")) {
+            String typingUser = msg.substring(8);
+            showTyping(typingUser);
+        }
+    }
+
+    private void appendChatMessage(int msgId, String sender, String message) {
+        if (page != null) {
+            page.add(new HistoryEntry(msgId, sender, message));
+            return;
+        }
+        seen(msgId);
+        onEdt(() -> {
+            // Resent after a reconnect, we had it before the drop
+            if (messages.contains(msgId)) return;
+            messages.append(chatRow(msgId, sender, message));
+            scrollAfterBatch = true;
+        });
+    }
+
+    // Reader thread: queues an update for the next batch
+    private void onEdt(Runnable update) {
+        uiUpdates.add(update);
+        if (uiScheduled.compareAndSet(false, true)) uiFrame.start();
+    }
+
+    private void applyUiBatch() {
+        // Cleared first, anything queued from here on starts the next frame
+        uiScheduled.set(false);
+        Runnable update;
+        while ((update = uiUpdates.poll()) != null) {
+            update.run();
+        }
+        messages.flush();
+        if (scrollAfterBatch) {
+            scrollAfterBatch = false;
+            messages.scrollToEnd();
+        }
+    }
+
+    // Inserts a page of older messages above everything shown, keeping the view where it was
+    private void insertHistoryPage(List<HistoryEntry> entries, int oldestId) {
+        JScrollBar bar = chatScroll.getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+        int fromBottom = bar.getMaximum() - bar.getValue();
+        List<MessageList.Row> rows = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            // Live messages that raced the page are already shown
+            if (!messages.contains(entry.msgId)) rows.add(chatRow(entry.msgId, entry.sender, entry.message));
+        }
+        messages.prepend(rows);
+        if (oldestId > 0 && (oldestLoadedId == 0 || oldestId < oldestLoadedId)) oldestLoadedId = oldestId;
+        else if (oldestId == 0) oldestLoadedId = 1;
+        loadingHistory = false;
+        // Once laid out; the first page lands at the bottom like live messages
+        SwingUtilities.invokeLater(() -> {
+            if (atBottom) messages.scrollToEnd();
+            else bar.setValue(bar.getMaximum() - fromBottom);
+        });
+    }
+
+    // Everything shown belongs to the previous room, its history follows
+    private void enterRoom(String room) {
+        setTitle("Java Chat - " + userName + " #" + room);
+        messages.clear();
+        reactionsMap.clear();
+        oldestLoadedId = 0;
+        loadingHistory = false;
+        typingLabel.setText(" ");
+    }
+
+    // Back after a drop: the view stays unless messages before fromId are missing from it, then it
+    // starts over at fromId with older ones loaded on scrolling up
+    private void resumeRoom(String room, int fromId) {
+        if (fromId > 1 && !messages.contains(fromId - 1)) {
+            enterRoom(room);
+            oldestLoadedId = fromId;
+        }
+        messages.append(MessageList.Row.system("Reconnected."));
+        scrollAfterBatch = true;
+    }
+
+    private void loadOlderHistory() {
+        if (loadingHistory || oldestLoadedId <= 1) return;
+        loadingHistory = true;
+        send("/history " + oldestLoadedId + " " + HISTORY_PAGE);
+    }
+
+    private MessageList.Row chatRow(int msgId, String sender, String message) {
+        return MessageList.Row.chat(msgId, sender, parseEmojis(message), getReactionsString(msgId));
+    }
+
+    private void appendPrivateMessage(String sender, String message) {
+        onEdt(() -> {
+            messages.append(MessageList.Row.pm(sender, parseEmojis(message)));
+            scrollAfterBatch = true;
+        });
+    }
+
+    private void appendSystemMessage(String message) {
+        onEdt(() -> {
+            messages.append(MessageList.Row.system(message));
+            scrollAfterBatch = true;
+        });
+    }
+
+    private void showUsers(List<String> users) {
+        shownUsers.clear();
+        shownUsers.addAll(users);
+        userListModel.clear();
+        userListModel.addAll(users);
+    }
+
+    // Leavers come out in one pass over the list, joiners go on the end in one add
+    private void updateUsers(List<String> changes) {
+        Set<String> left = new HashSet<>();
+        List<String> joined = new ArrayList<>();
+        for (String change : changes) {
+            String user = change.substring(1);
+            if (change.charAt(0) == '+') {
+                if (shownUsers.add(user)) joined.add(user);
+            } else if (shownUsers.remove(user)) {
+                left.add(user);
+            }
+        }
+        for (int i = userListModel.size() - 1; i >= 0 && !left.isEmpty(); i--) {
+            if (left.remove(userListModel.get(i))) userListModel.remove(i);
+        }
+        userListModel.addAll(joined);
+    }
+
+    static String parseEmojis(String message) {
+        for (var entry : EMOJI_MAP.entrySet()) {
+            message = message.replace(entry.getKey(), entry.getValue());
+        }
+        return message;
+    }
+
+    private void stopTyping() {
+        typingIdle.stop();
+        if (!typing) return;
+        typing = false;
+        send("/typing stop");
+    }
+
+    // Everyone typing right now, as sent by the server
+    private void showTyping(String typingUsers) {
+        if (pendingTyping.getAndSet(typingUsers) != null) return;
+        onEdt(() -> {
+            List<String> others = new ArrayList<>();
+            for (String user : pendingTyping.getAndSet(null).split(" ")) {
+                if (!user.isEmpty() && !user.equals(userName)) others.add(user);
+            }
+            if (others.isEmpty()) typingLabel.setText(" ");
+            else if (others.size() == 1) typingLabel.setText(others.get(0) + " is typing...");
+            else typingLabel.setText(String.join(", ", others) + " are typing...");
+        });
+    }
+
+    private String getEmojiFont() {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.contains("win")) return "Segoe UI Emoji";
+        if (os.contains("mac")) return "Apple Color Emoji";
+        return "Segoe UI Emoji";
+    }
+
+    private void updateTheme() {
+        Color bg = darkMode ? new Color(30, 32, 34) : Color.WHITE;
+        Color fg = darkMode ? Color.WHITE : Color.BLACK;
+        messages.setBackground(bg);
+        messages.setForeground(fg);
+        messages.setDarkMode(darkMode);
+        inputField.setBackground(bg);
+        inputField.setForeground(fg);
+        userList.setBackground(bg);
+        userList.setForeground(fg);
+        typingLabel.setForeground(darkMode ? Color.LIGHT_GRAY : Color.GRAY);
+        themeButton.setText(darkMode ? "Light Mode" : "Dark Mode");
+        repaint();
+    }
+
+    // Message reactions
+    // Replaces the reactions shown on a message's row with the current counts
+    private void updateReactionsDisplay(int msgId) {
+        MessageList.Row row = messages.message(msgId);
+        if (row != null) messages.setReactions(row, getReactionsString(msgId));
+    }
+
+    private String getReactionsString(int msgId) {
+        Map<String, Integer> reactMap = reactionsMap.get(msgId);
+        if (reactMap == null) return "";
+        StringBuilder sb = new StringBuilder();
+        for (var entry : reactMap.entrySet()) {
+            sb.append(entry.getKey()).append("×").append(entry.getValue()).append(" ");
+        }
+        return sb.toString().trim();
+    }
+
+    private static class HistoryEntry {
+        final int msgId;
+        final String sender;
+        final String message;
+
+        HistoryEntry(int msgId, String sender, String message) {
+            this.msgId = msgId;
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    // Usage: java ChatClient [--text] to stay on the line protocol
+    public static void main(String[] args) {
+        useBinary = !Arrays.asList(args).contains("--text");
+        useCompression = Arrays.asList(args).contains("--compress");
+        String keystore = ChatServer.option(args, "tls-keystore", null);
+        if (keystore != null) {
+            try {
+                tls = TlsChannel.context(Paths.get(keystore), ChatServer.option(args, "tls-password", "changeit").toCharArray());
+            } catch (IOException e) {
+                System.out.println("Could not load " + keystore + ": " + e.getMessage());
+                return;
+            }
+        }
+        SwingUtilities.invokeLater(() -> new ChatClient("localhost", 5000));
+    }
+}
@@ -0,0 +1,674 @@
+package chat;
+
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class ChatServer {
+    private static final int PORT = 5000;
+    // Joiners get the newest page, older ones are fetched with /history as the client scrolls up
+    private static final int HISTORY_PAGE = 50;
+    // Reactions are sent out as per-message totals at most this often
+    private static final long REACTION_FLUSH_MS = 250;
+    // Who is typing goes out once per tick, only when it changed. Clients refresh their start
+    // every couple of seconds, one that went quiet without a stop times out.
+    private static final long TYPING_TICK_MS = 500;
+    // Joins and leaves are sent as one change line per room at most this often
+    private static final long PRESENCE_FLUSH_MS = 100;
+    // Sessions of users who left are checked for expiry this often
+    private static final long SESSION_SWEEP_MS = 60_000;
+    private static final long SESSION_TTL_MINUTES = 24 * 60;
+    private static final int MAX_ROOMS = 1000;
+    private static final long ROOM_IDLE_MS = 10 * 60_000;
+    private static final long ROOM_SWEEP_MS = 60_000;
+    private static final int EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE_CAPACITY = 1024;
+    // Frames handed to the socket in one gathering write
+    static final int WRITE_BATCH = 64;
+
+    // When queued frames are written: IMMEDIATE as soon as the connection's writer gets to them,
+    // TURN once per event-loop turn so everything queued in that turn goes out in one write, LINGER
+    // up to flushLingerMs later to let a batch fill up. The blocking writer treats TURN as IMMEDIATE.
+    enum FlushPolicy { IMMEDIATE, TURN, LINGER }
+    static FlushPolicy flushPolicy = FlushPolicy.TURN;
+    static long flushLingerMs = 2;
+
+    // Outbound queue size per client and what to do when it fills up, by command prefix
+    static int queueCapacity = QUEUE_CAPACITY;
+    static Map<String, OutboundQueue.Overflow> overflowPolicies = new LinkedHashMap<>(Map.of(
+            "/typing ", OutboundQueue.Overflow.DROP_OLDEST,
+            "/msg ", OutboundQueue.Overflow.DISCONNECT));
+    // Server key and session cache when clients connect over TLS, null for plain connections
+    static SSLContext tls;
+    // Runs client readers and writers; platform threads unless --mode=virtual
+    static Executor threads = r -> new Thread(r).start();
+    // Delayed and periodic server work
+    static final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Uploaded files, stored once by content hash and pulled by whoever accepts the offer
+    private static final String FILE_STORE = "files";
+    static FileStore fileStore;
+
+    // Concurrent collections rather than monitors, so handlers running on
+    // virtual threads don't pin their carrier while blocked
+    // Users on this node; the cluster knows who is on the others
+    static Map<String, ClientHandler> userMap = new ConcurrentHashMap<>();
+    // User name -> session, kept across reconnects until the session TTL after the user left
+    static Map<String, Session> sessions = new ConcurrentHashMap<>();
+    static long sessionTtlMs = TimeUnit.MINUTES.toMillis(SESSION_TTL_MINUTES);
+    // Private messages held for offline users past what stays in memory, a file per user
+    private static final String SPOOL_DIR = "spool";
+    static Path spoolDir = Paths.get(SPOOL_DIR);
+    // Room name -> room, opened on first join. Each room keeps its own state, so the map is
+    // the only thing rooms share. At most maxRooms are open, and one nobody has been in for
+    // ROOM_IDLE_MS is closed along with its log.
+    private static Map<String, Room> rooms = new ConcurrentHashMap<>();
+    static int maxRooms = MAX_ROOMS;
+    static Room lobby;
+    // The other server nodes, none unless started with --nodes
+    static Cluster cluster = Cluster.single();
+
+    // Each room's messages and reactions live in its own on-disk log, read back a page at a
+    // time. The lobby's is the top-level directory, other rooms get a subdirectory.
+    private static final String HISTORY_DIR = "history";
+    static Path historyDir;
+
+    // Usage: java ChatServer [--mode=blocking|virtual|nio] [--port=5000] [--event-loops=N]
+    //                        [--queue-capacity=1024] [--overflow=typing:drop-oldest,msg:disconnect]
+    //                        [--flush=immediate|turn|linger:2]
+    //                        [--file-store=files] [--history-dir=history]
+    //                        [--spool-dir=spool] [--session-ttl=1440] [--max-rooms=1000]
+    //                        [--nodes=host:6001,host:6002,... --node=0] [--metrics-port=9090]
+    //                        [--tls-keystore=chat.p12 --tls-password=changeit]
+    // Every node of a cluster gets the same --nodes list of node-link addresses and its own
+    // index into it, plus its own --port for clients. Metrics are always on over JMX, the
+    // plain-text scrape endpoint on localhost only with --metrics-port. With --tls-keystore
+    // clients must connect over TLS; node links stay plain. Sessions, and with them the cursor a
+    // reconnecting client resumes from and the private messages held for offline users, are kept
+    // for --session-ttl minutes after the user left, and only on the node the user was on.
+    // Clients start in the "general" room and move with /join room and /leave
+    public static void main(String[] args) throws IOException {
+        String mode = option(args, "mode", "blocking");
+        int port = Integer.parseInt(option(args, "port", String.valueOf(PORT)));
+        queueCapacity = Integer.parseInt(option(args, "queue-capacity", String.valueOf(QUEUE_CAPACITY)));
+        String[] flush = option(args, "flush", "turn").split(":");
+        flushPolicy = FlushPolicy.valueOf(flush[0].toUpperCase());
+        if (flush.length == 2) flushLingerMs = Long.parseLong(flush[1]);
+        fileStore = new FileStore(Paths.get(option(args, "file-store", FILE_STORE)));
+        historyDir = Paths.get(option(args, "history-dir", HISTORY_DIR));
+        spoolDir = Paths.get(option(args, "spool-dir", SPOOL_DIR));
+        maxRooms = Integer.parseInt(option(args, "max-rooms", String.valueOf(MAX_ROOMS)));
+        sessionTtlMs = TimeUnit.MINUTES.toMillis(Long.parseLong(option(args, "session-ttl", String.valueOf(SESSION_TTL_MINUTES))));
+        String keystore = option(args, "tls-keystore", null);
+        if (keystore != null) {
+            tls = TlsChannel.context(Paths.get(keystore), option(args, "tls-password", "changeit").toCharArray());
+            System.out.println("Clients connect over TLS");
+        }
+        String nodes = option(args, "nodes", null);
+        if (nodes != null) {
+            String secret = option(args, "cluster-secret", null);
+            if (secret == null || secret.isEmpty()) throw new IOException("--nodes needs --cluster-secret");
+            cluster = new Cluster(Cluster.parseNodes(nodes), Integer.parseInt(option(args, "node", "0")), secret);
+            System.out.println("Cluster node " + cluster.self + " of " + cluster.size());
+        }
+        lobby = room(Room.LOBBY);
+        if (lobby == null) throw new IOException("Could not open the lobby's history");
+        cluster.start();
+        Metrics.start(Integer.parseInt(option(args, "metrics-port", "0")));
+        timers.scheduleAtFixedRate(() -> rooms.values().forEach(Room::flushReactions),
+                REACTION_FLUSH_MS, REACTION_FLUSH_MS, TimeUnit.MILLISECONDS);
+        timers.scheduleAtFixedRate(() -> rooms.values().forEach(Room::flushTyping),
+                TYPING_TICK_MS, TYPING_TICK_MS, TimeUnit.MILLISECONDS);
+        timers.scheduleAtFixedRate(() -> rooms.values().forEach(Room::flushPresence),
+                PRESENCE_FLUSH_MS, PRESENCE_FLUSH_MS, TimeUnit.MILLISECONDS);
+        timers.scheduleAtFixedRate(ChatServer::expireSessions, SESSION_SWEEP_MS, SESSION_SWEEP_MS, TimeUnit.MILLISECONDS);
+        timers.scheduleAtFixedRate(ChatServer::closeIdleRooms, ROOM_SWEEP_MS, ROOM_SWEEP_MS, TimeUnit.MILLISECONDS);
+        for (String policy : option(args, "overflow", "").split(",")) {
+            String[] parts = policy.split(":");
+            if (parts.length == 2) {
+                overflowPolicies.put("/" + parts[0] + " ",
+                        OutboundQueue.Overflow.valueOf(parts[1].toUpperCase().replace('-', '_')));
+            }
+        }
+
+        if (mode.equals("nio")) {
+            int loops = Integer.parseInt(option(args, "event-loops", String.valueOf(EVENT_LOOPS)));
+            System.out.println("Server started on port " + port + " (nio, " + loops + " event loops)");
+            new NioChatServer(port, loops).run();
+            return;
+        }
+
+        Executor executor = mode.equals("virtual") ? virtualThreadExecutor() : null;
+        if (executor != null) threads = executor;
+        // A blocking channel, so the writers can use gathering writes
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Server started on port " + port + (executor != null ? " (virtual threads)" : ""));
+
+        while (true) {
+            Socket socket = serverChannel.accept().socket();
+            threads.execute(new ClientHandler(socket));
+        }
+    }
+
+    // Looked up reflectively so the server still compiles and runs on JDKs before 21
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21+, falling back to platform threads.");
+            return null;
+        }
+    }
+
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+
+    // Held messages of an expired session stay on disk for the user's next login
+    private static void expireSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTtlMs;
+        for (String name : sessions.keySet()) {
+            sessions.computeIfPresent(name, (n, session) -> session.expire(cutoff) ? null : session);
+        }
+    }
+
+    static OutboundQueue.Overflow overflowFor(String message) {
+        for (var entry : overflowPolicies.entrySet()) {
+            if (message.startsWith(entry.getKey())) return entry.getValue();
+        }
+        return OutboundQueue.Overflow.DISCONNECT;
+    }
+
+    // Null if the name isn't valid, maxRooms are open or the room's log can't be opened.
+    // Looked up and marked used in one step, so closeIdleRooms can't take it away before the
+    // caller joins it.
+    static Room room(String name) {
+        if (!name.matches(Room.NAME_PATTERN)) return null;
+        try {
+            return rooms.compute(name, (n, room) -> {
+                if (room == null) room = openRoom(n);
+                if (room != null) room.touch();
+                return room;
+            });
+        } catch (UncheckedIOException e) {
+            System.out.println("Could not open room " + name + ": " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private static Room openRoom(String name) {
+        if (!name.equals(Room.LOBBY) && rooms.size() >= maxRooms) {
+            System.out.println("Not opening room " + name + ", " + maxRooms + " are open");
+            return null;
+        }
+        if (cluster.owner(name) != cluster.self) return new Room(name, cluster);
+        try {
+            Path dir = name.equals(Room.LOBBY) ? historyDir : historyDir.resolve(name);
+            return new Room(name, cluster, new MessageLog(dir));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The lobby stays open
+    private static void closeIdleRooms() {
+        long cutoff = System.currentTimeMillis() - ROOM_IDLE_MS;
+        for (String name : rooms.keySet()) {
+            if (name.equals(Room.LOBBY)) continue;
+            rooms.computeIfPresent(name, (n, room) -> {
+                if (!room.idleSince(cutoff)) return room;
+                room.close();
+                return null;
+            });
+        }
+    }
+
+    static void forEachRoom(Consumer<Room> action) {
+        rooms.values().forEach(action);
+    }
+
+    // Outbound side of a client, implemented by the blocking socket and the NIO event loop
+    interface Connection {
+        void send(Frame frame);
+        int queued();
+        void close();
+        // False once closing, nothing sent from then on is sure to be written
+        boolean isOpen();
+    }
+
+    static class SocketConnection implements Connection {
+        private final Socket socket;
+        private final SocketChannel channel;
+        // TLS over the channel, null for plain connections
+        private final TlsChannel tls;
+        private final OutboundQueue queue = new OutboundQueue(queueCapacity);
+        private final FrameWriter writer = new FrameWriter(queue);
+
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+            this.channel = socket.getChannel();
+            // Handshake tasks run on the reader thread, it has nothing else to do until it's done
+            this.tls = ChatServer.tls == null ? null : TlsChannel.server(ChatServer.tls, channel, Runnable::run, () -> {});
+            threads.execute(this::writeLoop);
+        }
+
+        // Reader side: finishes the handshake first, nothing is queued for the writer before that
+        ReadableByteChannel input() throws IOException {
+            if (tls == null) return channel;
+            tls.handshake();
+            return tls;
+        }
+
+        public void send(Frame frame) {
+            if (!queue.offer(frame)) {
+                System.out.println("Disconnecting slow client " + socket.getRemoteSocketAddress());
+                abort();
+            }
+        }
+
+        // Writer: drains whatever is queued, the channel is blocking so flush writes it all
+        private void writeLoop() {
+            try {
+                while (queue.await()) {
+                    if (flushPolicy == FlushPolicy.LINGER) queue.linger(WRITE_BATCH, flushLingerMs);
+                    writer.flush(tls != null ? tls : channel);
+                }
+            } catch (IOException e) {
+                // Reader side notices the closed socket
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                writer.close();
+                abort();
+            }
+        }
+
+        public int queued() {
+            return queue.size();
+        }
+
+        public boolean isOpen() {
+            return !queue.isClosed();
+        }
+
+        // Lets the writer finish what is queued, then closes the socket
+        public void close() {
+            queue.close();
+        }
+
+        void abort() {
+            queue.close();
+            try {
+                if (tls != null) tls.close();
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        private Socket socket;
+        private Connection connection;
+        private String userName;
+        private boolean joined;
+        private boolean binary;
+        private boolean compressed;
+        private Room room;
+        private Session session;
+        // Uploads in progress, by the sender's transfer id
+        private final Map<String, Upload> uploads = new HashMap<>();
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        ClientHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        Room getRoom() {
+            return room;
+        }
+
+        // Another node had the name first
+        void kick(String reason) {
+            sendMessage("/error " + reason);
+            connection.close();
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        boolean isCompressed() {
+            return compressed;
+        }
+
+        // Blocking mode: one thread per client reading off the socket
+        public void run() {
+            SocketConnection socketConnection = new SocketConnection(socket);
+            connection = socketConnection;
+            InboundDecoder decoder = new InboundDecoder(this);
+            try {
+                ReadableByteChannel channel = socketConnection.input();
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                int n;
+                while ((n = channel.read(buffer)) >= 0) {
+                    Metrics.bytesIn(n);
+                    buffer.flip();
+                    boolean open = decoder.decode(buffer);
+                    buffer.clear();
+                    if (!open) break;
+                }
+            } catch (IOException e) {
+                System.out.println("Connection error: " + e.getMessage());
+            } finally {
+                connection.close();
+                decoder.close();
+                disconnect();
+            }
+        }
+
+        // Text command words and binary opcodes both land here, by opcode
+        private static final Command.Handler[] HANDLERS = new Command.Handler[Command.COUNT];
+
+        static {
+            // Not a command we know: refused, never passed on, or a client could put any line
+            // (a /filedata, a /session) in front of the rest of the room
+            HANDLERS[Command.OTHER] = (c, command) -> c.sendMessage("/error Unknown command.");
+            // Normal message (assign message id)
+            HANDLERS[Command.MSG] = (c, command) -> c.room.post(c.userName, command.arg(0));
+            HANDLERS[Command.PM] = (c, command) -> c.onPrivateMessage(command.arg(0), command.arg(1));
+            // Format: /react messageId emoji username. The reaction is always the sender's own,
+            // the username is only there for older clients and not looked at.
+            HANDLERS[Command.REACT] = (c, command) -> c.room.react(command.intArg(0), command.arg(1), c.userName);
+            // Typing indicator, format: /typing start|stop, or 1|0 in a binary frame
+            HANDLERS[Command.TYPING] = (c, command) -> c.room.typing(c.userName,
+                    command.isNumber(0) ? command.intArg(0) != 0 : !command.argIs(0, "stop"));
+            // Switch to the binary protocol, the ack is the last text frame this client gets
+            HANDLERS[Command.PROTO] = (c, command) -> {
+                if (command.argIs(0, "binary")) {
+                    c.binary = true;
+                    c.send(Frame.BINARY_ACK);
+                }
+            };
+            // Switch on compression, the ack is the last uncompressed frame
+            HANDLERS[Command.COMPRESS] = (c, command) -> {
+                if (command.argIs(0, "deflate") && !c.compressed) {
+                    c.compressed = true;
+                    c.send(Frame.COMPRESS_ACK);
+                }
+            };
+            // Switch rooms, format: /join room, /leave goes back to the lobby
+            HANDLERS[Command.JOIN] = (c, command) -> c.onJoinRoom(command.arg(0).trim());
+            HANDLERS[Command.LEAVE] = (c, command) -> c.onLeaveRoom();
+            // The room's member list again, after a missed presence change
+            HANDLERS[Command.USERS] = (c, command) -> c.room.requestPresence(c);
+            // File upload into the server's store
+            // Format: /filestart id size name, /filechunk id base64, /fileend id, /fileabort id
+            HANDLERS[Command.FILESTART] = (c, command) -> c.onFileStart(command.arg(0), command.arg(2));
+            HANDLERS[Command.FILECHUNK] = (c, command) -> c.onFileChunk(command.arg(0), command.argBytes(1));
+            HANDLERS[Command.FILEEND] = (c, command) -> c.onFileEnd(command.arg(0));
+            HANDLERS[Command.FILEABORT] = (c, command) -> c.onFileAbort(command.arg(0));
+            // Format: /fetch hash, answered with /filedata hash size and the raw bytes
+            HANDLERS[Command.FETCH] = (c, command) -> c.onFetch(command.arg(0));
+            // Whole-file sharing from older clients, format: /file name base64. Put back together
+            // from its arguments rather than passed on as it came.
+            HANDLERS[Command.FILE] = (c, command) -> c.room.broadcast("/file " + command.arg(0) + " " + command.arg(1));
+            // Older history, format: /history beforeId limit
+            HANDLERS[Command.HISTORY] = (c, command) -> c.onHistory(command.intArg(0), command.intArg(1));
+            // Newest message the client has shown, format: /ack room msgId
+            HANDLERS[Command.ACK] = (c, command) -> c.session.ack(command.arg(0), command.intArg(1));
+        }
+
+        // Handles one parsed line or frame, returns false when the connection should be closed
+        boolean handle(Command command) {
+            // Handlers pass text on inside lines, an embedded line break would start a forged one
+            if (command.hasLineBreak()) {
+                sendMessage("/error Commands can't contain line breaks.");
+                return joined;
+            }
+            if (!joined) {
+                // First message from client is the username
+                return join(command.line());
+            }
+            if (command.opcode() == Command.QUIT) return false;
+            Metrics.command(command.metric());
+            // Missing arguments or numbers that aren't: the command is ignored
+            if (!command.complete()) return true;
+            try {
+                HANDLERS[command.opcode()].handle(this, command);
+            } catch (NumberFormatException e) {}
+            return true;
+        }
+
+        // A line from outside the decoder
+        boolean handleLine(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            return handle(new Command().parseText(bytes, 0, bytes.length));
+        }
+
+        private void onJoinRoom(String name) {
+            Room next = room(name);
+            if (next == null) {
+                sendMessage(name.matches(Room.NAME_PATTERN)
+                        ? "/notify #" + name + " can't be opened right now."
+                        : "/notify Room names are 1-32 letters, digits, '-' or '_'.");
+            } else if (next != room) {
+                enter(next);
+            }
+        }
+
+        private void onLeaveRoom() {
+            if (room != lobby) enter(lobby);
+        }
+
+        // Told first with "/room name", so the client can clear its view before the room's history
+        private void enter(Room next) {
+            if (room != null) room.leave(this);
+            room = next;
+            session.enter(next.name);
+            sendMessage("/room " + next.name);
+            next.join(this);
+            next.requestHistory(this, Integer.MAX_VALUE, HISTORY_PAGE);
+        }
+
+        // Back in the room the client still shows, it only gets what came after its cursor
+        private void resume(Room next, int afterId) {
+            room = next;
+            session.resume(next.name, afterId);
+            next.join(this);
+            next.requestResume(this, afterId);
+        }
+
+        private void onPrivateMessage(String target, String pm) {
+            ClientHandler recipient = userMap.get(target);
+            String line = "/pm " + userName + " " + pm;
+            if (recipient != null || cluster.sendPrivate(target, userName, pm)) {
+                if (recipient != null) recipient.sendMessage(line);
+                sendMessage(line); // echo to sender
+                return;
+            }
+            // Someone who was here, it waits for them
+            Session away = sessions.get(target);
+            if (away == null) {
+                sendMessage("/notify User not found.");
+            } else if (away.hold(line)) {
+                sendMessage(line);
+                sendMessage("/notify " + target + " is offline and gets it when back.");
+            } else {
+                sendMessage("/notify " + target + " is offline with too many messages waiting.");
+            }
+        }
+
+        private void onFileStart(String id, String name) {
+            try {
+                uploads.put(id, new Upload(fileStore.begin(), name));
+            } catch (IOException e) {
+                System.out.println("Upload failed: " + e.getMessage());
+                sendMessage("/notify File upload failed.");
+            }
+        }
+
+        // Decoded straight from the line's bytes
+        private void onFileChunk(String id, ByteBuffer data) {
+            Upload upload = uploads.get(id);
+            if (upload == null) return;
+            try {
+                upload.file.write(Base64.getDecoder().decode(data));
+                sendMessage("/fileack " + id);
+            } catch (IOException | IllegalArgumentException e) {
+                uploads.remove(id).file.abort();
+                sendMessage("/notify File upload failed.");
+            }
+        }
+
+        // Stores the file and offers it; receivers pull it with /fetch only if they want it
+        private void onFileEnd(String id) {
+            Upload upload = uploads.remove(id);
+            if (upload == null) return;
+            try {
+                long size = upload.file.size();
+                String hash = upload.file.commit();
+                // Only this node's store has the file, so only its members of the room are offered it
+                room.broadcastLocal(Frame.of("/fileoffer " + hash + " " + size + " " + upload.name), this);
+            } catch (IOException e) {
+                upload.file.abort();
+                sendMessage("/notify File upload failed.");
+            }
+        }
+
+        private void onFileAbort(String id) {
+            Upload upload = uploads.remove(id);
+            if (upload != null) upload.file.abort();
+        }
+
+        private void onFetch(String hash) {
+            Path path = fileStore.path(hash);
+            try {
+                if (path != null) {
+                    send(Frame.file("/filedata " + hash + " " + Files.size(path), path, Files.size(path)));
+                    return;
+                }
+            } catch (IOException e) {}
+            sendMessage("/notify File not found.");
+        }
+
+        private void onHistory(int beforeId, int limit) {
+            room.requestHistory(this, beforeId, limit);
+        }
+
+        // The first line: the user's name, or "/resume token name" from a client whose connection
+        // dropped. With the right token it gets its place back, even from a connection this node
+        // hasn't noticed is gone yet; with a wrong or expired one it's an ordinary login.
+        private boolean join(String line) {
+            Session resumed = null;
+            if (line.startsWith("/resume ")) {
+                String[] parts = line.split(" ", 3);
+                line = parts.length == 3 ? parts[2] : "";
+                Session session = sessions.get(line);
+                if (session != null && session.matches(parts[1])) {
+                    resumed = session;
+                    ClientHandler stale = userMap.get(line);
+                    if (stale != null && userMap.remove(line, stale)) stale.connection.close();
+                }
+            }
+            userName = line;
+            if (!validName(userName) || cluster.isRemoteUser(userName)
+                    || userMap.putIfAbsent(userName, this) != null) {
+                sendMessage("/error Username invalid or already taken.");
+                return false;
+            }
+            joined = true;
+
+            System.out.println(userName + (resumed != null ? " is back." : " joined the chat."));
+            Metrics.connected();
+            cluster.sendAll("user+ " + userName);
+            session = sessions.compute(userName, (n, existing) -> {
+                Session next = existing != null ? existing : new Session(n);
+                next.attach(this);
+                return next;
+            });
+            sendMessage("/session " + session.newToken());
+
+            String last = resumed != null ? resumed.room() : null;
+            Room lastRoom = last != null ? room(last) : null;
+            if (lastRoom == null) enter(lobby);
+            else if (resumed.acked() > 0) resume(lastRoom, resumed.acked());
+            else enter(lastRoom);
+            // After the room, so clearing the view for it doesn't take them along
+            session.deliverHeld();
+            return true;
+        }
+
+        // Names travel as one space separated field of client and node lines, so no whitespace or
+        // control characters; a leading '/' would read as a command
+        private static boolean validName(String name) {
+            if (name.isEmpty() || name.startsWith("/")) return false;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c)) return false;
+            }
+            return true;
+        }
+
+        // Called once the connection is gone, whichever transport owns it
+        void disconnect() {
+            if (!joined) return;
+            joined = false;
+            // Unless a reconnect of the same user took over
+            if (userMap.remove(userName, this)) cluster.sendAll("user- " + userName);
+            session.detach(this);
+            room.leave(this);
+            for (Upload upload : uploads.values()) {
+                upload.file.abort();
+            }
+            uploads.clear();
+        }
+
+        void sendMessage(String message) {
+            connection.send(Frame.of(message));
+        }
+
+        void send(Frame frame) {
+            connection.send(frame);
+        }
+
+        int queued() {
+            return connection.queued();
+        }
+
+        boolean isOpen() {
+            return connection.isOpen();
+        }
+    }
+
+    static class Upload {
+        final FileStore.Upload file;
+        final String name;
+
+        Upload(FileStore.Upload file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+}
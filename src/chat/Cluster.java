@@ -0,0 +1,335 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The other server nodes. Every node is started with the same node list, so all of them agree
+// on which node owns a room: the owner hands out the room's message ids, keeps its history and
+// fans its traffic out, the other nodes forward what their clients do in that room to it. The
+// user directory is shared by announcing local logins and logouts to every node.
+//
+// Each pair of nodes talks over two one-way links, a node only writes to the links it opened
+// and reads from the ones it accepted. Lines queue per link and go out in batches, one flush
+// per batch; a link that drops reconnects and resends its node's users and room members.
+//
+// The link listener only binds the node's own address from the list, and a link counts once its
+// first line names another node of the list and carries the cluster secret.
+//
+// Node protocol, one line each, the last field may contain spaces:
+//   node index secret            first line on a link
+//   user+ name / user- name      login and logout on the sending node
+//   join room user / leave room user / member room user (rejoin, no notice)
+//   post room user text / react room id emoji user / typing room user 1|0
+//   history room user beforeId limit / resume room user afterId
+//   room room line               owner to node: deliver to the room's local members
+//   to user line                 deliver to one local user
+//   pm target sender text
+class Cluster {
+    private static final int LINK_CAPACITY = 1 << 16;
+    private static final int LINK_BATCH = 256;
+    private static final long RECONNECT_MS = 1000;
+    // For the first line; a connection that doesn't send one doesn't keep a thread
+    private static final int HELLO_TIMEOUT_MS = 5000;
+
+    final int self;
+    private final List<InetSocketAddress> nodes;
+    private final byte[] secret;
+    private final Link[] links;
+    // Users logged in on other nodes -> their node
+    private final Map<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+    // Node -> generation of its current inbound link, so a stale link's drop is ignored
+    private final Map<Integer, Integer> inbound = new ConcurrentHashMap<>();
+    private final AtomicInteger generations = new AtomicInteger();
+
+    Cluster(List<InetSocketAddress> nodes, int self, String secret) {
+        if (self < 0 || self >= nodes.size()) throw new IllegalArgumentException("Node " + self + " is not in the node list");
+        this.nodes = nodes;
+        this.self = self;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.links = new Link[nodes.size()];
+    }
+
+    // A cluster of one: owns every room, talks to nobody
+    static Cluster single() {
+        return new Cluster(List.of(new InetSocketAddress(0)), 0, "");
+    }
+
+    // Format: host:port,host:port,...
+    static List<InetSocketAddress> parseNodes(String spec) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : spec.split(",")) {
+            int colon = node.lastIndexOf(':');
+            nodes.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        return nodes;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    int owner(String room) {
+        return Math.floorMod(room.hashCode(), nodes.size());
+    }
+
+    boolean isRemoteUser(String name) {
+        return remoteUsers.containsKey(name);
+    }
+
+    void start() throws IOException {
+        if (nodes.size() == 1) return;
+        InetSocketAddress address = nodes.get(self);
+        ServerSocket server = new ServerSocket(address.getPort(), 50, address.getAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    ChatServer.threads.execute(() -> readLink(socket));
+                } catch (IOException e) {
+                    System.out.println("Node link accept failed: " + e.getMessage());
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i == self) continue;
+            links[i] = new Link(i);
+            Thread writer = new Thread(links[i]::run, "cluster-link-" + i);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    void send(int node, String line) {
+        if (node != self && links[node] != null) links[node].send(line);
+    }
+
+    void sendAll(String line) {
+        for (Link link : links) {
+            if (link != null) link.send(line);
+        }
+    }
+
+    // False unless the user is logged in on another node
+    boolean sendPrivate(String target, String sender, String text) {
+        Integer node = remoteUsers.get(target);
+        if (node == null) return false;
+        send(node, "pm " + target + " " + sender + " " + text);
+        return true;
+    }
+
+    // Sent first on every (re)connect, so the other node rebuilds what it lost with the old link
+    private List<String> hello(int node) {
+        List<String> lines = new ArrayList<>();
+        lines.add("node " + self + " " + new String(secret, StandardCharsets.UTF_8));
+        for (ChatServer.ClientHandler client : ChatServer.userMap.values()) {
+            lines.add("user+ " + client.getUserName());
+            Room room = client.getRoom();
+            if (room != null && room.owner == node) lines.add("member " + room.name + " " + client.getUserName());
+        }
+        return lines;
+    }
+
+    private void readLink(Socket socket) {
+        int node = -1;
+        int generation = 0;
+        try (socket; BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            socket.setSoTimeout(HELLO_TIMEOUT_MS);
+            String line = in.readLine();
+            int from = helloFrom(line);
+            if (from < 0) {
+                System.out.println("Refused node link from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            socket.setSoTimeout(0);
+            node = from;
+            generation = generations.incrementAndGet();
+            inbound.put(node, generation);
+            System.out.println("Node " + node + " connected.");
+            while ((line = in.readLine()) != null) {
+                handle(node, line);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Node link error: " + e.getMessage());
+        } finally {
+            if (node >= 0 && inbound.remove(node, generation)) nodeDown(node);
+        }
+    }
+
+    // The other node's index from a link's first line, -1 unless it is one of the others and
+    // knows the secret. The secret is compared in constant time.
+    private int helloFrom(String line) {
+        if (line == null) return -1;
+        String[] f = line.split(" ", 3);
+        if (f.length != 3 || !f[0].equals("node")) return -1;
+        int node;
+        try {
+            node = Integer.parseInt(f[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (node < 0 || node >= nodes.size() || node == self) return -1;
+        return MessageDigest.isEqual(secret, f[2].getBytes(StandardCharsets.UTF_8)) ? node : -1;
+    }
+
+    private void nodeDown(int node) {
+        System.out.println("Node " + node + " disconnected.");
+        remoteUsers.values().removeIf(n -> n == node);
+        ChatServer.forEachRoom(room -> room.dropNode(node));
+    }
+
+    private void handle(int node, String line) {
+        String[] parts = line.split(" ", 2);
+        String args = parts.length > 1 ? parts[1] : "";
+        switch (parts[0]) {
+            case "user+": {
+                ChatServer.ClientHandler local = ChatServer.userMap.get(args);
+                // Both nodes let the same name in: the lower node keeps it
+                if (local != null) {
+                    if (node > self) return;
+                    local.kick("Username taken on another server.");
+                }
+                remoteUsers.put(args, node);
+                return;
+            }
+            case "user-":
+                remoteUsers.remove(args, node);
+                return;
+            case "to": {
+                String[] f = args.split(" ", 2);
+                ChatServer.ClientHandler client = ChatServer.userMap.get(f[0]);
+                if (client != null && f.length == 2) client.sendMessage(f[1]);
+                return;
+            }
+            case "pm": {
+                String[] f = args.split(" ", 3);
+                ChatServer.ClientHandler client = ChatServer.userMap.get(f[0]);
+                if (client != null && f.length == 3) client.sendMessage("/pm " + f[1] + " " + f[2]);
+                return;
+            }
+        }
+        // The rest are about one room
+        String[] f = args.split(" ", 2);
+        Room room = ChatServer.room(f[0]);
+        if (room == null || f.length < 2) return;
+        String rest = f[1];
+        switch (parts[0]) {
+            case "room":
+                room.deliver(rest);
+                break;
+            case "join":
+                room.joinRemote(node, rest, true);
+                break;
+            case "member":
+                room.joinRemote(node, rest, false);
+                break;
+            case "leave":
+                room.leaveRemote(rest);
+                break;
+            case "post": {
+                String[] p = rest.split(" ", 2);
+                if (p.length == 2) room.post(p[0], p[1]);
+                break;
+            }
+            case "react": {
+                String[] p = rest.split(" ", 3);
+                // The sending node attached its own user, who must be logged in there
+                if (p.length == 3 && Integer.valueOf(node).equals(remoteUsers.get(p[2]))) {
+                    room.react(Integer.parseInt(p[0]), p[1], p[2]);
+                }
+                break;
+            }
+            case "typing": {
+                String[] p = rest.split(" ");
+                if (p.length == 2) room.typing(p[0], p[1].equals("1"));
+                break;
+            }
+            case "presence":
+                room.sendPresence(l -> send(node, "to " + rest + " " + l));
+                break;
+            case "resume": {
+                String[] p = rest.split(" ");
+                if (p.length == 2) {
+                    String user = p[0];
+                    room.sendResume(l -> send(node, "to " + user + " " + l), Integer.parseInt(p[1]));
+                }
+                break;
+            }
+            case "history": {
+                String[] p = rest.split(" ");
+                if (p.length == 3) {
+                    String user = p[0];
+                    room.sendHistoryPage(l -> send(node, "to " + user + " " + l),
+                            Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+                }
+                break;
+            }
+            default:
+                System.out.println("Unknown node command: " + parts[0]);
+        }
+    }
+
+    // Outbound link to one node, written by its own thread in batches
+    private class Link {
+        private final int node;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(LINK_CAPACITY);
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        void send(String line) {
+            // One line is one node command, a line break inside it would make a second one
+            if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+                System.out.println("Not sending a line with a line break to node " + node);
+                return;
+            }
+            if (!queue.offer(line)) System.out.println("Link to node " + node + " is full, dropping: " + line);
+        }
+
+        void run() {
+            List<String> batch = new ArrayList<>(LINK_BATCH);
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(nodes.get(node));
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+                    // A batch cut short by the old link goes out again after the hello
+                    List<String> retry = new ArrayList<>(hello(node));
+                    retry.addAll(batch);
+                    write(out, retry);
+                    while (true) {
+                        batch.clear();
+                        batch.add(queue.take());
+                        queue.drainTo(batch, LINK_BATCH - 1);
+                        write(out, batch);
+                    }
+                } catch (IOException e) {
+                    // Node not up (yet) or the link dropped, try again shortly
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void write(OutputStream out, List<String> lines) throws IOException {
+            for (String line : lines) {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One inbound command, parsed in place over the decoder's buffer: its opcode and where each
+// argument starts and ends, nothing copied. The decoder reuses one per connection, so only the
+// arguments a handler keeps (message text, names) ever become Strings.
+final class Command {
+    // Opcodes, indexes into the handler table. The binary protocol's MSG, PM, REACT and TYPING
+    // land on the same ones as their text commands.
+    static final int OTHER = 0;
+    static final int MSG = 1;
+    static final int PM = 2;
+    static final int REACT = 3;
+    static final int TYPING = 4;
+    static final int QUIT = 5;
+    static final int PROTO = 6;
+    static final int COMPRESS = 7;
+    static final int JOIN = 8;
+    static final int LEAVE = 9;
+    static final int USERS = 10;
+    static final int FILESTART = 11;
+    static final int FILECHUNK = 12;
+    static final int FILEEND = 13;
+    static final int FILEABORT = 14;
+    static final int FETCH = 15;
+    static final int FILE = 16;
+    static final int HISTORY = 17;
+    static final int ACK = 18;
+    static final int COUNT = 19;
+
+    // By opcode: the command word, how many space separated arguments it takes (the last one
+    // runs to the end of the line) and what it counts as in the metrics
+    private static final String[] WORDS = new String[COUNT];
+    private static final int[] ARGS = new int[COUNT];
+    private static final Metrics.Command[] METRICS = new Metrics.Command[COUNT];
+    // Open addressing on the word's hash, holding opcode + 1
+    private static final byte[] LOOKUP = new byte[64];
+    private static final int MAX_ARGS = 3;
+    private static final int NO_VALUE = -1;
+
+    static {
+        word(MSG, "/msg", 1, Metrics.Command.MSG);
+        word(PM, "/pm", 2, Metrics.Command.PM);
+        word(REACT, "/react", 3, Metrics.Command.REACT);
+        word(TYPING, "/typing", 1, Metrics.Command.TYPING);
+        word(QUIT, "/quit", 0, Metrics.Command.OTHER);
+        word(PROTO, "/proto", 1, Metrics.Command.OTHER);
+        word(COMPRESS, "/compress", 1, Metrics.Command.OTHER);
+        word(JOIN, "/join", 1, Metrics.Command.OTHER);
+        word(LEAVE, "/leave", 0, Metrics.Command.OTHER);
+        word(USERS, "/users", 0, Metrics.Command.OTHER);
+        word(FILESTART, "/filestart", 3, Metrics.Command.FILE);
+        word(FILECHUNK, "/filechunk", 2, Metrics.Command.FILE);
+        word(FILEEND, "/fileend", 1, Metrics.Command.FILE);
+        word(FILEABORT, "/fileabort", 1, Metrics.Command.FILE);
+        word(FETCH, "/fetch", 1, Metrics.Command.OTHER);
+        word(FILE, "/file", 2, Metrics.Command.FILE);
+        word(HISTORY, "/history", 2, Metrics.Command.OTHER);
+        word(ACK, "/ack", 2, Metrics.Command.OTHER);
+        METRICS[OTHER] = Metrics.Command.OTHER;
+    }
+
+    private static void word(int opcode, String word, int args, Metrics.Command metric) {
+        WORDS[opcode] = word;
+        ARGS[opcode] = args;
+        METRICS[opcode] = metric;
+        int slot = hash(word) & (LOOKUP.length - 1);
+        while (LOOKUP[slot] != 0) slot = (slot + 1) & (LOOKUP.length - 1);
+        LOOKUP[slot] = (byte) (opcode + 1);
+    }
+
+    // Letters folded to lower case, so /QUIT still quits
+    private static int hash(String word) {
+        int h = 0;
+        for (int i = 0; i < word.length(); i++) h = h * 31 + (word.charAt(i) | 0x20);
+        return h;
+    }
+
+    interface Handler {
+        void handle(ChatServer.ClientHandler client, Command command);
+    }
+
+    private byte[] source;
+    private int lineStart;
+    private int lineEnd;
+    private int opcode;
+    private int count;
+    // A CR or LF inside the line or a string argument, which would pass on as more than one line
+    private boolean lineBreak;
+    private final int[] starts = new int[MAX_ARGS];
+    private final int[] ends = new int[MAX_ARGS];
+    // Binary varint arguments, already decoded
+    private final int[] values = new int[MAX_ARGS];
+
+    // A text line, without its newline
+    Command parseText(byte[] bytes, int start, int end) {
+        source = bytes;
+        lineStart = start;
+        lineEnd = end;
+        count = 0;
+        opcode = OTHER;
+        lineBreak = hasLineBreak(start, end);
+        if (start == end || bytes[start] != '/') return this;
+
+        int h = 0;
+        int wordEnd = start;
+        while (wordEnd < end && bytes[wordEnd] != ' ') h = h * 31 + (bytes[wordEnd++] | 0x20);
+        opcode = lookup(h, start, wordEnd);
+        // Arguments only exist after a space, "/msg " has one empty argument and "/msg" none
+        int args = ARGS[opcode];
+        int pos = wordEnd + 1;
+        while (count < args && pos <= end) {
+            int argEnd = end;
+            if (count < args - 1) {
+                argEnd = pos;
+                while (argEnd < end && bytes[argEnd] != ' ') argEnd++;
+            }
+            arg(pos, argEnd, NO_VALUE);
+            pos = argEnd + 1;
+        }
+        return this;
+    }
+
+    // A binary frame positioned at its opcode; false for an opcode we don't know.
+    // Throws BufferUnderflowException or IllegalArgumentException when it's malformed.
+    boolean parseBinary(ByteBuffer frame) {
+        source = frame.array();
+        lineStart = lineEnd = 0;
+        count = 0;
+        lineBreak = false;
+        switch (frame.get()) {
+            case BinaryCodec.MSG:
+                opcode = MSG;
+                string(frame);
+                return true;
+            case BinaryCodec.PM:
+                opcode = PM;
+                string(frame);
+                string(frame);
+                return true;
+            case BinaryCodec.REACT:
+                opcode = REACT;
+                arg(0, 0, BinaryCodec.readVarint(frame));
+                string(frame);
+                string(frame);
+                return true;
+            case BinaryCodec.TYPING:
+                opcode = TYPING;
+                arg(0, 0, BinaryCodec.readVarint(frame));
+                return true;
+            case BinaryCodec.TEXT: {
+                int length = BinaryCodec.readVarint(frame);
+                if (length > frame.remaining()) throw new IllegalArgumentException("Truncated string");
+                int start = frame.arrayOffset() + frame.position();
+                parseText(source, start, start + length);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void string(ByteBuffer frame) {
+        int length = BinaryCodec.readVarint(frame);
+        if (length > frame.remaining()) throw new IllegalArgumentException("Truncated string");
+        int start = frame.arrayOffset() + frame.position();
+        arg(start, start + length, NO_VALUE);
+        lineBreak |= hasLineBreak(start, start + length);
+        frame.position(frame.position() + length);
+    }
+
+    private boolean hasLineBreak(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (source[i] == '\n' || source[i] == '\r') return true;
+        }
+        return false;
+    }
+
+    private void arg(int start, int end, int value) {
+        starts[count] = start;
+        ends[count] = end;
+        values[count] = value;
+        count++;
+    }
+
+    private int lookup(int h, int start, int end) {
+        for (int slot = h & (LOOKUP.length - 1); LOOKUP[slot] != 0; slot = (slot + 1) & (LOOKUP.length - 1)) {
+            int opcode = LOOKUP[slot] - 1;
+            if (matches(WORDS[opcode], start, end, true)) return opcode;
+        }
+        return OTHER;
+    }
+
+    private boolean matches(String word, int start, int end, boolean foldCase) {
+        if (end - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            int b = source[start + i];
+            if ((foldCase ? b | 0x20 : b) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    Metrics.Command metric() {
+        return METRICS[opcode];
+    }
+
+    // The command must be refused as a whole, whatever it is
+    boolean hasLineBreak() {
+        return lineBreak;
+    }
+
+    // Every argument the command takes is there
+    boolean complete() {
+        return count == ARGS[opcode];
+    }
+
+    String arg(int i) {
+        return new String(source, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    // The argument's bytes, valid until the next parse
+    ByteBuffer argBytes(int i) {
+        return ByteBuffer.wrap(source, starts[i], ends[i] - starts[i]);
+    }
+
+    // Compares against an ASCII literal without decoding the argument
+    boolean argIs(int i, String literal) {
+        return matches(literal, starts[i], ends[i], false);
+    }
+
+    boolean isNumber(int i) {
+        return values[i] != NO_VALUE;
+    }
+
+    // A varint from a binary frame, or a non-negative decimal from a text line
+    int intArg(int i) {
+        if (values[i] != NO_VALUE) return values[i];
+        int start = starts[i];
+        int end = ends[i];
+        if (start == end || end - start > 10) throw new NumberFormatException("Bad number");
+        long value = 0;
+        for (int p = start; p < end; p++) {
+            int digit = source[p] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Bad number");
+            value = value * 10 + digit;
+        }
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("Bad number");
+        return (int) value;
+    }
+
+    // The whole text line, for the username a client logs in with
+    String line() {
+        return new String(source, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+}
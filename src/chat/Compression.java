@@ -0,0 +1,326 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional deflate layer under either protocol, asked for with "/compress deflate" once logged in.
+// Like the binary switch, the client compresses everything after its request and the server
+// everything after its ack. From then on both directions carry records:
+//   [kind][varint length][payload]
+// RAW payloads are protocol bytes as-is: writes below the threshold, where deflate's flush marker
+// and CPU aren't worth it, file downloads (sent zero-copy) and upload chunks that don't compress.
+// DEFLATE payloads come from one deflate stream per direction, sync-flushed at the end of every
+// record: each record inflates as soon as it arrives, and the window carries over between them,
+// so repeated message headers, user names and user lists compress against what went before.
+final class Compression {
+    static final String HANDSHAKE = "/compress deflate";
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    // Plain bytes per write below which a record goes out RAW
+    static final int THRESHOLD = 96;
+    // Uploads whose first chunk doesn't shrink below this ratio are sent RAW
+    private static final double COMPRESSIBLE_RATIO = 0.9;
+    private static final int MAX_HEADER = 11;
+
+    private Compression() {}
+
+    // The header of a RAW record, for bodies written after it without copying
+    static ByteBuffer rawHeader(long length) {
+        ByteBuffer header = ByteBuffer.allocate(MAX_HEADER);
+        header.put(RAW);
+        putVarint(header, length);
+        return header.flip();
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // A quick fast-level trial on a sample, enough to tell media and archives from text
+    static boolean compressible(byte[] sample, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length + 64];
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return n < length * COMPRESSIBLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // One direction's deflate stream. Not thread-safe, each connection side owns one.
+    static final class Compressor {
+        private final Deflater deflater;
+        private final int threshold;
+        private byte[] out = new byte[4096];
+
+        Compressor() {
+            this(Deflater.DEFAULT_COMPRESSION, THRESHOLD);
+        }
+
+        Compressor(int level, int threshold) {
+            this.deflater = new Deflater(level, true);
+            this.threshold = threshold;
+        }
+
+        // One record holding the plain bytes; the buffer is valid until the next call
+        ByteBuffer record(byte[] plain, int offset, int length) {
+            if (length < threshold) {
+                ensure(MAX_HEADER + length);
+                ByteBuffer record = ByteBuffer.wrap(out);
+                record.put(RAW);
+                putVarint(record, length);
+                record.put(plain, offset, length);
+                return record.flip();
+            }
+
+            // Deflated after room for the header, which is filled in once the size is known
+            deflater.setInput(plain, offset, length);
+            int n = MAX_HEADER;
+            while (true) {
+                n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+                if (n < out.length) break;
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int payload = n - MAX_HEADER;
+            int headerLength = 1 + varintLength(payload);
+            int start = MAX_HEADER - headerLength;
+            ByteBuffer header = ByteBuffer.wrap(out, start, headerLength);
+            header.put(DEFLATE);
+            putVarint(header, payload);
+            return ByteBuffer.wrap(out, start, n - start);
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private void ensure(int capacity) {
+            if (capacity > out.length) out = Arrays.copyOf(out, Math.max(out.length * 2, capacity));
+        }
+
+        private static int varintLength(long value) {
+            int n = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                n++;
+            }
+            return n;
+        }
+    }
+
+    interface Sink {
+        // False to stop decoding
+        boolean accept(ByteBuffer plain);
+    }
+
+    // Records in, plain bytes out, for the server's non-blocking reads: takes whatever bytes
+    // arrived and keeps its place in a record across calls
+    static final class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] out = new byte[8192];
+        private int kind = -1;
+        private long length;
+        private int shift;
+        private long remaining = -1; // payload bytes left, -1 while reading the length
+
+        // False on a malformed stream or when the sink stops
+        boolean decode(ByteBuffer in, Sink sink) {
+            while (in.hasRemaining()) {
+                if (kind < 0) {
+                    kind = in.get();
+                    if (kind != RAW && kind != DEFLATE) return false;
+                    length = 0;
+                    shift = 0;
+                    remaining = -1;
+                } else if (remaining < 0) {
+                    byte b = in.get();
+                    length |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        remaining = length;
+                        if (remaining == 0) kind = -1;
+                    } else if (shift >= 63) {
+                        return false;
+                    }
+                } else {
+                    int n = (int) Math.min(in.remaining(), remaining);
+                    ByteBuffer payload = in.slice();
+                    payload.limit(n);
+                    in.position(in.position() + n);
+                    remaining -= n;
+                    boolean raw = kind == RAW;
+                    if (remaining == 0) kind = -1;
+                    if (!(raw ? sink.accept(payload) : inflate(payload, sink))) return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean inflate(ByteBuffer payload, Sink sink) {
+            inflater.setInput(payload);
+            try {
+                while (true) {
+                    int n = inflater.inflate(out);
+                    if (n > 0 && !sink.accept(ByteBuffer.wrap(out, 0, n))) return false;
+                    if (n == 0) return inflater.needsInput();
+                }
+            } catch (DataFormatException e) {
+                return false;
+            }
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+
+    // Client side writer: buffers plain bytes and turns each flush into one record
+    static final class RecordOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Compressor compressor = new Compressor();
+        private byte[] pending = new byte[8192];
+        private int count;
+
+        RecordOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        public void write(int b) {
+            ensure(1);
+            pending[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, pending, count, len);
+            count += len;
+        }
+
+        // Bytes that won't compress: closes the current record and sends these in a RAW one
+        void writeRaw(byte[] b) throws IOException {
+            writePending();
+            ByteBuffer header = rawHeader(b.length);
+            out.write(header.array(), 0, header.limit());
+            out.write(b);
+        }
+
+        public void flush() throws IOException {
+            writePending();
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            flush();
+            compressor.end();
+            out.close();
+        }
+
+        private void writePending() throws IOException {
+            if (count == 0) return;
+            ByteBuffer record = compressor.record(pending, 0, count);
+            out.write(record.array(), record.position(), record.remaining());
+            count = 0;
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > pending.length) pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + extra));
+        }
+    }
+
+    // Client side reader: plain bytes out of the server's records
+    static final class RecordInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] compressed = new byte[8192];
+        private byte[] plain = new byte[8192];
+        private int pos;
+        private int limit;
+        private long rawRemaining;
+
+        RecordInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return plain[pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(plain, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            pos = 0;
+            limit = 0;
+            while (limit == 0) {
+                if (rawRemaining > 0) {
+                    int n = in.read(plain, 0, (int) Math.min(plain.length, rawRemaining));
+                    if (n < 0) throw new EOFException();
+                    rawRemaining -= n;
+                    limit = n;
+                    return true;
+                }
+                int kind = in.read();
+                if (kind < 0) return false;
+                long length = readVarint();
+                if (kind == RAW) {
+                    rawRemaining = length;
+                } else if (kind == DEFLATE) {
+                    if (length > BinaryCodec.MAX_FRAME) throw new IOException("Bad record length " + length);
+                    if (length > compressed.length) compressed = new byte[(int) length];
+                    in.readFully(compressed, 0, (int) length);
+                    inflateRecord((int) length);
+                } else {
+                    throw new IOException("Bad record kind " + kind);
+                }
+            }
+            return true;
+        }
+
+        private void inflateRecord(int length) throws IOException {
+            inflater.setInput(compressed, 0, length);
+            try {
+                while (true) {
+                    if (limit == plain.length) plain = Arrays.copyOf(plain, plain.length * 2);
+                    int n = inflater.inflate(plain, limit, plain.length - limit);
+                    limit += n;
+                    if (n == 0 && inflater.needsInput()) return;
+                    if (n == 0 && limit < plain.length) throw new IOException("Truncated record");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed record", e);
+            }
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 63; shift += 7) {
+                int b = in.read();
+                if (b < 0) throw new EOFException();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Uploaded files, stored once under their SHA-256. Uploading the same content again only
+// costs the upload itself, the second copy is dropped.
+public class FileStore {
+    private final Path dir;
+
+    public FileStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    // Null unless the hash is well formed and stored
+    public Path path(String hash) {
+        if (!hash.matches("[0-9a-f]{64}")) return null;
+        Path path = dir.resolve(hash);
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    public Upload begin() throws IOException {
+        return new Upload(Files.createTempFile(dir, "upload-", ".part"));
+    }
+
+    public class Upload {
+        private final Path temp;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+
+        private Upload(Path temp) throws IOException {
+            this.temp = temp;
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void write(ByteBuffer data) throws IOException {
+            digest.update(data.duplicate());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        // Returns the content hash the file is now stored under
+        public String commit() throws IOException {
+            channel.close();
+            String hash = hex(digest.digest());
+            Path target = dir.resolve(hash);
+            if (Files.exists(target)) {
+                Files.delete(temp);
+            } else {
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // Same content committed concurrently
+                    Files.delete(temp);
+                }
+            }
+            return hash;
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {}
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
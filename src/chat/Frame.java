@@ -0,0 +1,100 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// One outbound line, encoded to bytes once and shared read-only by every connection it is sent to.
+// The binary encoding is only built if some recipient negotiated the binary protocol.
+public final class Frame {
+    // Last text frame a client sees before its writer switches to binary
+    static final Frame BINARY_ACK = of(BinaryCodec.HANDSHAKE);
+    // Last frame a client gets uncompressed
+    static final Frame COMPRESS_ACK = of(Compression.HANDSHAKE);
+
+    private final String text;
+    private final byte[] bytes;
+    private volatile byte[] binary;
+    private final OutboundQueue.Overflow overflow;
+    // Raw file body written straight after this frame's line
+    private final Path file;
+    private final long fileSize;
+
+    private Frame(String text, byte[] bytes, Path file, long fileSize) {
+        this.text = text;
+        this.bytes = bytes;
+        this.overflow = ChatServer.overflowFor(text);
+        this.file = file;
+        this.fileSize = fileSize;
+    }
+
+    public static Frame of(String line) {
+        return new Frame(line, encode(line), null, 0);
+    }
+
+    // A header line followed by fileSize raw bytes, served with FileChannel.transferTo
+    public static Frame file(String header, Path file, long fileSize) {
+        return new Frame(header, encode(header), file, fileSize);
+    }
+
+    private static byte[] encode(String line) {
+        // Most lines are ASCII: straight into the frame's array, no intermediate copy
+        int n = line.length();
+        for (int i = 0; i < n; i++) {
+            if (line.charAt(i) >= 0x80) return encodeUtf8(line);
+        }
+        byte[] bytes = new byte[n + 1];
+        for (int i = 0; i < n; i++) bytes[i] = (byte) line.charAt(i);
+        bytes[n] = '\n';
+        return bytes;
+    }
+
+    private static byte[] encodeUtf8(String line) {
+        byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+        bytes[encoded.length] = '\n';
+        return bytes;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    OutboundQueue.Overflow overflow() {
+        return overflow;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    // Nothing after this frame goes in the same write: a file body follows it, or the
+    // connection's encoding changes
+    boolean endsBatch() {
+        return file != null || this == COMPRESS_ACK;
+    }
+
+    // A fresh read-only view over the shared bytes, one per write
+    public ByteBuffer buffer(boolean binaryProtocol) {
+        return ByteBuffer.wrap(binaryProtocol ? binaryBytes() : bytes).asReadOnlyBuffer();
+    }
+
+    private byte[] binaryBytes() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            // Benign race: at worst two writers encode the same frame
+            encoded = BinaryCodec.encodeServerLine(text);
+            binary = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,121 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Moves frames from one client's outbound queue onto its channel: gathering writes for lines,
+// FileChannel.transferTo for file downloads. Used by the blocking writer thread and the NIO
+// event loop alike, never by two threads at once. Once the client has compression, each batch of
+// lines goes out as one record and file bodies as RAW records, still by transferTo. Over TLS the
+// channel is a TlsChannel, and transferTo copies the file through it instead.
+class FrameWriter {
+    private final OutboundQueue queue;
+    private final Frame[] batch = new Frame[ChatServer.WRITE_BATCH];
+    private final ByteBuffer[] pending = new ByteBuffer[ChatServer.WRITE_BATCH];
+    private int pendingStart;
+    private int pendingCount;
+    private boolean binary; // flips once the handshake ack has been written
+    private Compression.Compressor compressor; // set once the compression ack has been written
+    private byte[] plain = new byte[8192];
+
+    // File body sent after the pending buffers, i.e. after its header
+    private FileChannel file;
+    private long filePosition;
+    private long fileRemaining;
+
+    FrameWriter(OutboundQueue queue) {
+        this.queue = queue;
+    }
+
+    // Writes until the queue is empty (true) or the channel can't take more (false)
+    boolean flush(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            if (pendingCount == 0 && file == null && !refill()) return true;
+
+            if (pendingCount > 0) {
+                Metrics.bytesOut(channel.write(pending, pendingStart, pendingCount));
+                while (pendingCount > 0 && !pending[pendingStart].hasRemaining()) {
+                    pending[pendingStart++] = null;
+                    pendingCount--;
+                }
+                if (pendingCount > 0) return false;
+            }
+
+            if (file != null) {
+                long n = file.transferTo(filePosition, fileRemaining, channel);
+                Metrics.bytesOut(n);
+                filePosition += n;
+                fileRemaining -= n;
+                if (fileRemaining > 0) {
+                    if (n == 0) return false;
+                    continue;
+                }
+                closeFile();
+            }
+        }
+    }
+
+    private boolean refill() throws IOException {
+        pendingStart = 0;
+        pendingCount = queue.poll(batch);
+        if (compressor != null && pendingCount > 0) return refillCompressed(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            Frame frame = batch[i];
+            batch[i] = null;
+            pending[i] = frame.buffer(binary);
+            if (frame == Frame.BINARY_ACK) binary = true;
+            // The queue ends the batch here, so everything after goes compressed
+            if (frame == Frame.COMPRESS_ACK) compressor = new Compression.Compressor();
+            if (frame.file() != null) openFile(frame);
+        }
+        return pendingCount > 0;
+    }
+
+    // Copies the batch into one record, the record buffer is reused by the next batch
+    private boolean refillCompressed(int count) throws IOException {
+        int length = 0;
+        Frame last = batch[count - 1];
+        for (int i = 0; i < count; i++) {
+            Frame frame = batch[i];
+            batch[i] = null;
+            ByteBuffer bytes = frame.buffer(binary);
+            if (length + bytes.remaining() > plain.length) {
+                plain = Arrays.copyOf(plain, Math.max(plain.length * 2, length + bytes.remaining()));
+            }
+            int n = bytes.remaining();
+            bytes.get(plain, length, n);
+            length += n;
+            if (frame == Frame.BINARY_ACK) binary = true;
+        }
+        pending[0] = compressor.record(plain, 0, length);
+        pendingCount = 1;
+        if (last.file() != null) {
+            pending[pendingCount++] = Compression.rawHeader(last.fileSize());
+            openFile(last);
+        }
+        return true;
+    }
+
+    // The queue stops a batch at a file frame, so this is the last one
+    private void openFile(Frame frame) throws IOException {
+        file = FileChannel.open(frame.file(), StandardOpenOption.READ);
+        filePosition = 0;
+        fileRemaining = frame.fileSize();
+    }
+
+    private void closeFile() {
+        try {
+            file.close();
+        } catch (IOException e) {}
+        file = null;
+    }
+
+    void close() {
+        if (file != null) closeFile();
+        if (compressor != null) compressor.end();
+    }
+}
@@ -0,0 +1,123 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// The newest messages in a preallocated ring, indexed by message id. Ids come from one atomic
+// sequence that is also the ring position, so senders never wait on each other: claim an id,
+// fill its slot, publish. Readers copy slots without blocking anyone and check each one still
+// holds the id they asked for; anything older than the ring comes from the MessageLog.
+// Reactions live on the entries, so they are only taken for messages still in the ring and
+// their memory goes with the message.
+class HistoryRing {
+    private static final int CLAIM_SPINS = 100;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicInteger sequence;
+    // Oldest id the ring has, anything before was written before a restart and not loaded
+    private int startId;
+
+    // Published entries are handed to the log in id order by whichever sender gets the lock
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private volatile int drained;
+
+    HistoryRing(int capacity, int nextId) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.sequence = new AtomicInteger(nextId);
+        this.startId = nextId;
+        this.drained = nextId;
+    }
+
+    int nextId() {
+        return sequence.get();
+    }
+
+    // Messages in the ring: everything since the oldest it has, up to its capacity
+    int size() {
+        return Math.min(sequence.get() - startId, slots.length());
+    }
+
+    // Every claimed id must be published, the log waits for it
+    int claim() {
+        int id = sequence.getAndIncrement();
+        // Don't lap entries the log hasn't taken yet. What holds them up is usually a sender that
+        // was descheduled between claim and publish, so past a short spin give it the CPU.
+        for (int spins = 0; id - drained > mask; spins++) {
+            if (spins < CLAIM_SPINS) Thread.onSpinWait();
+            else Thread.yield();
+        }
+        return id;
+    }
+
+    void publish(int id, String line) {
+        slots.set(id & mask, new Entry(id, line));
+    }
+
+    // Fills in a message read back from the log, in id order and before any are claimed
+    Entry load(int id, String line) {
+        Entry entry = new Entry(id, line);
+        slots.set(id & mask, entry);
+        startId = Math.min(startId, id);
+        return entry;
+    }
+
+    // Null once the message has left the ring
+    Entry entry(int id) {
+        Entry entry = slots.get(id & mask);
+        return entry != null && entry.id == id ? entry : null;
+    }
+
+    // Passes every published entry not yet drained to the sink, in id order. Returns at once if
+    // another thread is draining; it picks up what was published meanwhile before it lets go.
+    void drain(Consumer<Entry> sink) {
+        while (drainLock.tryLock()) {
+            try {
+                Entry entry;
+                while ((entry = slots.get(drained & mask)) != null && entry.id == drained) {
+                    sink.accept(entry);
+                    drained++;
+                }
+            } finally {
+                drainLock.unlock();
+            }
+            Entry next = slots.get(drained & mask);
+            if (next == null || next.id != drained) return;
+        }
+    }
+
+    // The messages fromId <= id < toId, stopping at the first one still being published.
+    // Null if part of the range isn't in the ring (any more).
+    List<Entry> snapshot(int fromId, int toId) {
+        if (fromId < startId || toId - fromId > slots.length()) return null;
+        List<Entry> entries = new ArrayList<>(toId - fromId);
+        for (int id = fromId; id < toId; id++) {
+            Entry entry = slots.get(id & mask);
+            if (entry == null || entry.id < id) break;
+            if (entry.id > id) return null; // overwritten while we were reading
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    static final class Entry {
+        final int id;
+        final String line;
+        // Emoji -> users who reacted; the map allocates nothing until the first reaction
+        final Map<String, Set<String>> reactions = new ConcurrentHashMap<>();
+
+        Entry(int id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package chat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Splits a client's inbound bytes into text lines, or into binary frames once the client has
+// negotiated them. Shared by the blocking reader and the NIO event loop; the frame buffer and
+// the command parsed over it are reused, so nothing is allocated per line or frame apart from
+// the arguments the handler keeps.
+class InboundDecoder {
+    private final ChatServer.ClientHandler handler;
+    private final Command command = new Command();
+    private byte[] buf = new byte[256];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    private int length;
+
+    private boolean binary;
+    private int frameLength = -1;
+    private int varint;
+    private int varintShift;
+
+    // Set once the client asked for compression, the bytes after its request are records
+    private Compression.Decompressor inflating;
+
+    InboundDecoder(ChatServer.ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    // Consumes the buffer, returns false once the handler asked to close the connection
+    boolean decode(ByteBuffer in) {
+        if (inflating != null) return inflating.decode(in, this::decodePlain);
+        if (!decodePlain(in)) return false;
+        // Compression started partway through the buffer
+        return inflating == null || inflating.decode(in, this::decodePlain);
+    }
+
+    // Protocol bytes, stops right after the line that turns compression on
+    private boolean decodePlain(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (!binary) {
+                byte b = in.get();
+                if (b == '\n') {
+                    int end = length;
+                    if (end > 0 && buf[end - 1] == '\r') end--;
+                    length = 0;
+                    if (!handler.handle(command.parseText(buf, 0, end))) return false;
+                    binary = handler.isBinary();
+                    if (startsCompression()) return true;
+                } else {
+                    ensureCapacity(length + 1);
+                    buf[length++] = b;
+                }
+            } else if (frameLength < 0) {
+                byte b = in.get();
+                varint |= (b & 0x7F) << varintShift;
+                varintShift += 7;
+                if ((b & 0x80) == 0) {
+                    frameLength = varint;
+                    varint = 0;
+                    varintShift = 0;
+                    if (frameLength <= 0 || frameLength > BinaryCodec.MAX_FRAME) return false;
+                    ensureCapacity(frameLength);
+                } else if (varintShift >= 35) {
+                    return false;
+                }
+            } else {
+                int n = Math.min(in.remaining(), frameLength - length);
+                in.get(buf, length, n);
+                length += n;
+                if (length == frameLength) {
+                    view.clear().limit(frameLength);
+                    frameLength = -1;
+                    length = 0;
+                    if (!parseFrame() || !handler.handle(command)) return false;
+                    if (startsCompression()) return true;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean parseFrame() {
+        try {
+            return command.parseBinary(view);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("Malformed frame from " + handler.getUserName());
+            return false;
+        }
+    }
+
+    private boolean startsCompression() {
+        if (inflating != null || !handler.isCompressed()) return false;
+        inflating = new Compression.Decompressor();
+        return true;
+    }
+
+    void close() {
+        if (inflating != null) inflating.end();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, capacity));
+            view = ByteBuffer.wrap(buf);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package chat;
+
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load for a running ChatServer: many simulated users on the text protocol, each typing,
+// posting, reacting and now and then uploading a small file, at random intervals around --rate
+// actions per second. Message latency is the time from sending a /msg to getting it back in the
+// room's broadcast, measured on the sender; delivered counts those live broadcasts only, not the
+// history page replayed on each join. Prints throughput every second and latency
+// percentiles at the end, with the typing lines sent (one per message, TYPED_KEYS keys apart) against
+// the "/typing users" lines the server's tick sent back. With --tls-keystore every user connects over TLS; they share one context,
+// so a run against a warm server mostly resumes sessions, like a reconnect wave would.
+//
+// Usage: java chat.LoadGenerator [--host=localhost] [--port=5000] [--users=1000] [--rate=1]
+//                                [--duration=30] [--rooms=1]
+//                                [--tls-keystore=chat.p12 --tls-password=changeit]
+public class LoadGenerator {
+    private static final String[] EMOJIS = {"👍", "❤️", "😂"};
+    private static final int FILE_SIZE = 16 * 1024;
+    private static final String TAG = "lg";
+    // Each message is typed first, like ChatClient: one "/typing start" for the keys, the /msg ends it
+    private static final int TYPED_KEYS = 9;
+    private static final int KEYS_PER_SECOND = 6;
+
+    private final String host;
+    private final int port;
+    private final double rate;
+    private final int rooms;
+    private final long deadline;
+    private final Executor threads;
+    private SSLContext tls;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder reactions = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder typingSent = new LongAdder();
+    private final LongAdder typingReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    // Most users connected at once, what a server running out of threads or memory caps
+    private final AtomicInteger peak = new AtomicInteger();
+    private final Latencies latency = new Latencies();
+
+    LoadGenerator(String host, int port, double rate, int rooms, long durationMs, Executor threads) {
+        this.host = host;
+        this.port = port;
+        this.rate = rate;
+        this.rooms = rooms;
+        this.deadline = System.currentTimeMillis() + durationMs;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String host = ChatServer.option(args, "host", "localhost");
+        int port = Integer.parseInt(ChatServer.option(args, "port", "5000"));
+        int users = Integer.parseInt(ChatServer.option(args, "users", "1000"));
+        double rate = Double.parseDouble(ChatServer.option(args, "rate", "1"));
+        int seconds = Integer.parseInt(ChatServer.option(args, "duration", "30"));
+        int rooms = Integer.parseInt(ChatServer.option(args, "rooms", "1"));
+
+        // Two threads per user, so virtual ones when the JDK has them
+        Executor threads = virtualThreads();
+        LoadGenerator load = new LoadGenerator(host, port, rate, rooms, seconds * 1000L, threads);
+        String keystore = ChatServer.option(args, "tls-keystore", null);
+        if (keystore != null) {
+            load.tls = TlsChannel.context(Paths.get(keystore),
+                    ChatServer.option(args, "tls-password", "changeit").toCharArray());
+        }
+        System.out.println("Starting " + users + " users against " + host + ":" + port + " for " + seconds + "s");
+        CountDownLatch done = new CountDownLatch(users);
+        for (int i = 0; i < users; i++) {
+            String name = "load" + i;
+            threads.execute(() -> {
+                try {
+                    load.user(name);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        load.report(done);
+    }
+
+    private static Executor virtualThreads() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.start();
+            };
+        }
+    }
+
+    // One simulated user: reader on its own thread, actions on this one until the deadline
+    private void user(String name) {
+        try (Socket socket = tls != null ? tls.getSocketFactory().createSocket(host, port) : new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            int room = Math.floorMod(name.hashCode(), rooms);
+            write(out, name);
+            if (room > 0) write(out, "/join load" + room);
+            out.flush();
+
+            AtomicInteger lastMsgId = new AtomicInteger();
+            threads.execute(() -> read(name, in, lastMsgId));
+            peak.accumulateAndGet(connected.incrementAndGet(), Math::max);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int uploads = 0;
+            while (System.currentTimeMillis() < deadline) {
+                // Exponential gaps, so users don't move in lockstep
+                Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * 1000 / rate));
+                double action = random.nextDouble();
+                if (action < 0.02) {
+                    upload(out, name + "-" + uploads++, random);
+                    files.increment();
+                } else if (action < 0.15 && lastMsgId.get() > 0) {
+                    write(out, "/react " + lastMsgId.get() + " " + EMOJIS[random.nextInt(EMOJIS.length)] + " " + name);
+                    reactions.increment();
+                } else {
+                    write(out, "/typing start");
+                    out.flush();
+                    typingSent.increment();
+                    Thread.sleep(TYPED_KEYS * 1000L / KEYS_PER_SECOND);
+                    write(out, "/msg " + TAG + " " + System.nanoTime() + " hello from " + name);
+                    sent.increment();
+                }
+                out.flush();
+            }
+            write(out, "/quit");
+            out.flush();
+        } catch (IOException e) {
+            errors.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connected.decrementAndGet();
+        }
+    }
+
+    private void read(String name, BufferedReader in, AtomicInteger lastMsgId) {
+        String own = " " + name + " " + TAG + " ";
+        // The page sent on each join holds ids below its beforeId; live broadcasts in that room
+        // start at beforeId, even when one lands in the middle of the page
+        int liveFrom = Integer.MAX_VALUE;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("/typing ")) typingReceived.increment();
+                if (line.startsWith("/historypage ")) liveFrom = Integer.parseInt(line.substring(13));
+                if (!line.startsWith("/msg ")) continue;
+                // Format: /msg id user text
+                int idEnd = line.indexOf(' ', 5);
+                int id = Integer.parseInt(line.substring(5, idEnd));
+                lastMsgId.set(id);
+                if (id < liveFrom) continue;
+                received.increment();
+                if (line.startsWith(own, idEnd)) {
+                    int start = idEnd + own.length();
+                    long sentAt = Long.parseLong(line.substring(start, line.indexOf(' ', start)));
+                    latency.record((System.nanoTime() - sentAt) / 1000);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Closed with the socket
+        }
+    }
+
+    // Same flow as ChatClient, in one chunk; the server's ack is ignored
+    private static void upload(OutputStream out, String id, ThreadLocalRandom random) throws IOException {
+        byte[] data = new byte[FILE_SIZE];
+        random.nextBytes(data);
+        write(out, "/filestart " + id + " " + data.length + " " + id + ".bin");
+        write(out, "/filechunk " + id + " " + Base64.getEncoder().encodeToString(data));
+        write(out, "/fileend " + id);
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void report(CountDownLatch done) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long lastSent = 0, lastReceived = 0;
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            long s = sent.sum(), r = received.sum();
+            System.out.printf("%3ds  users %d  sent %d/s  delivered %d/s  p50 %dus  p99 %dus%n",
+                    (System.currentTimeMillis() - start) / 1000, connected.get(), s - lastSent, r - lastReceived,
+                    latency.percentile(0.50), latency.percentile(0.99));
+            lastSent = s;
+            lastReceived = r;
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.printf("%nSent %d messages (%.0f/s), %d reactions, %d files; delivered %d (%.0f/s); %d connection errors%n",
+                sent.sum(), sent.sum() / seconds, reactions.sum(), files.sum(), received.sum(), received.sum() / seconds,
+                errors.sum());
+        System.out.printf("Typing lines: sent %d for %d keys, received %d%n",
+                typingSent.sum(), typingSent.sum() * TYPED_KEYS, typingReceived.sum());
+        System.out.printf("Peak %d users connected at once%n", peak.get());
+        System.out.printf("Latency us: p50 %d  p90 %d  p99 %d  p99.9 %d  max %d  (%d samples)%n",
+                latency.percentile(0.50), latency.percentile(0.90), latency.percentile(0.99),
+                latency.percentile(0.999), latency.max(), latency.count());
+    }
+
+    // Log-linear buckets: 16 per power of two, so a percentile is within about 6% of the real value
+    static final class Latencies {
+        private static final int SUB = 16;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+        private final LongAdder count = new LongAdder();
+        private volatile long max;
+
+        void record(long micros) {
+            micros = Math.max(0, micros);
+            buckets.incrementAndGet(bucket(micros));
+            count.increment();
+            if (micros > max) max = micros;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= 4
+            int sub = (int) (value >>> (exponent - 4)) & (SUB - 1);
+            return (exponent - 3) * SUB + sub;
+        }
+
+        // Lower bound of the bucket
+        private static long value(int bucket) {
+            if (bucket < SUB) return bucket;
+            int exponent = bucket / SUB + 3;
+            return (long) (SUB + bucket % SUB) << (exponent - 4);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double quantile) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(max, value(i));
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package chat;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedCharacterIterator;
+import java.text.AttributedString;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// The chat view: one list row per line over a bounded model, so only the rows on screen are
+// laid out and painted, and a long session keeps at most MAX_ROWS of them. Every row is stamped
+// by the same renderer with one shared set of fonts and colors (plus a color per sender), and
+// its wrapped height is cached on the row until the width or its reactions change.
+// Rows past the limit are dropped from the top; chat messages dropped that way can be paged
+// back in from the server's history. Appends are only announced to the list on flush(), so a
+// burst of them costs one layout pass. EDT only.
+class MessageList extends JList<MessageList.Row> {
+    private static final int MAX_ROWS = 2000;
+    // Dropped in batches, so a busy room doesn't shift the model on every message
+    private static final int EVICT_BATCH = 250;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    enum Kind { CHAT, PM, SYSTEM }
+
+    static final class Row {
+        final Kind kind;
+        final int msgId; // 0 unless a chat message
+        final String time;
+        final String sender;
+        final String text;
+        String reactions;
+        // Where the row sits among all rows since the last clear; stays put when rows are added
+        // above or dropped, so its index is this minus the first row's
+        long position;
+        // Height at measuredWidth, -1 until measured
+        int measuredWidth = -1;
+        int height;
+
+        private Row(Kind kind, int msgId, String sender, String text, String reactions) {
+            this.kind = kind;
+            this.msgId = msgId;
+            this.time = LocalTime.now().format(TIME);
+            this.sender = sender;
+            this.text = text;
+            this.reactions = reactions;
+        }
+
+        static Row chat(int msgId, String sender, String text, String reactions) {
+            return new Row(Kind.CHAT, msgId, sender, text, reactions);
+        }
+
+        static Row pm(String sender, String text) {
+            return new Row(Kind.PM, 0, sender, text, "");
+        }
+
+        static Row system(String text) {
+            return new Row(Kind.SYSTEM, 0, null, text, "");
+        }
+    }
+
+    private final Model model = new Model();
+    private final RowView view = new RowView();
+    // Chat rows by message id
+    private final Map<Integer, Row> messages = new HashMap<>();
+    private final IntConsumer evicted;
+
+    // evicted is told the id of every chat message dropped off the top, oldest first
+    MessageList(IntConsumer evicted) {
+        this.evicted = evicted;
+        setModel(model);
+        setCellRenderer((list, row, index, selected, focused) -> view.show(row, list));
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                if (getWidth() != view.lastWidth) relayout();
+            }
+        });
+    }
+
+    // Wrap to the viewport rather than growing sideways
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    public void setFont(Font font) {
+        super.setFont(font);
+        if (view != null) view.setFont(font);
+    }
+
+    void setDarkMode(boolean darkMode) {
+        view.setDarkMode(darkMode);
+        repaint();
+    }
+
+    Row message(int msgId) {
+        return messages.get(msgId);
+    }
+
+    boolean contains(int msgId) {
+        return messages.containsKey(msgId);
+    }
+
+    // Shown with the next flush
+    void append(Row row) {
+        if (row.kind == Kind.CHAT) messages.put(row.msgId, row);
+        model.append(row);
+    }
+
+    // Tells the list about everything appended since the last flush, in one event
+    void flush() {
+        model.flushAppends();
+        if (model.size() > MAX_ROWS + EVICT_BATCH) evict(model.size() - MAX_ROWS);
+    }
+
+    // Rows above everything shown, in order
+    void prepend(List<Row> rows) {
+        for (Row row : rows) {
+            if (row.kind == Kind.CHAT) messages.put(row.msgId, row);
+        }
+        model.prepend(rows);
+    }
+
+    void setReactions(Row row, String reactions) {
+        row.reactions = reactions;
+        row.measuredWidth = -1;
+        model.changed(row);
+    }
+
+    void clear() {
+        messages.clear();
+        model.clear();
+    }
+
+    void scrollToEnd() {
+        flush();
+        if (model.size() > 0) ensureIndexIsVisible(model.size() - 1);
+    }
+
+    // The row under a point, null between or below rows
+    Row rowAt(Point point) {
+        int index = locationToIndex(point);
+        if (index < 0 || !getCellBounds(index, index).contains(point)) return null;
+        return model.getElementAt(index);
+    }
+
+    private void evict(int count) {
+        for (int i = 0; i < count; i++) {
+            Row row = model.getElementAt(i);
+            if (row.kind == Kind.CHAT && messages.remove(row.msgId) != null) evicted.accept(row.msgId);
+        }
+        model.removeFirst(count);
+    }
+
+    // The list UI only measures rows again when told its layout is stale; toggling the fixed
+    // height is the one public way to say so. Rows measured at another width redo their height.
+    private void relayout() {
+        setFixedCellHeight(1);
+        setFixedCellHeight(-1);
+    }
+
+    // Rows at announced and after are appended but not yet announced; every other change
+    // announces them first, so the list never sees indexes out of order. Positions run without
+    // gaps from the first row's, appends count up from the end and pages count down from the top.
+    private static final class Model extends AbstractListModel<Row> {
+        private final ArrayList<Row> rows = new ArrayList<>();
+        private int announced;
+        private long first;
+
+        public int getSize() {
+            return announced;
+        }
+
+        public Row getElementAt(int index) {
+            return rows.get(index);
+        }
+
+        int size() {
+            return rows.size();
+        }
+
+        void append(Row row) {
+            row.position = first + rows.size();
+            rows.add(row);
+        }
+
+        void flushAppends() {
+            if (announced == rows.size()) return;
+            int first = announced;
+            announced = rows.size();
+            fireIntervalAdded(this, first, announced - 1);
+        }
+
+        void prepend(List<Row> page) {
+            flushAppends();
+            if (page.isEmpty()) return;
+            first -= page.size();
+            for (int i = 0; i < page.size(); i++) {
+                page.get(i).position = first + i;
+            }
+            rows.addAll(0, page);
+            announced = rows.size();
+            fireIntervalAdded(this, 0, page.size() - 1);
+        }
+
+        void removeFirst(int count) {
+            flushAppends();
+            rows.subList(0, count).clear();
+            first += count;
+            announced = rows.size();
+            fireIntervalRemoved(this, 0, count - 1);
+        }
+
+        void changed(Row row) {
+            flushAppends();
+            int index = indexOf(row);
+            if (index >= 0) fireContentsChanged(this, index, index);
+        }
+
+        // -1 once the row was dropped
+        int indexOf(Row row) {
+            long index = row.position - first;
+            return index >= 0 && index < rows.size() && rows.get((int) index) == row ? (int) index : -1;
+        }
+
+        void clear() {
+            flushAppends();
+            if (rows.isEmpty()) return;
+            int last = rows.size() - 1;
+            rows.clear();
+            announced = 0;
+            first = 0;
+            fireIntervalRemoved(this, 0, last);
+        }
+    }
+
+    // The one component every row is stamped with. A row is a few styled runs wrapped with a
+    // LineBreakMeasurer, no document or view tree; measuring only needs the line heights, and
+    // only the rows on screen are laid out again to be painted.
+    private static final class RowView extends JComponent {
+        private static final int PAD_X = 4;
+        private static final int PAD_Y = 1;
+
+        private Font plain;
+        private Font bold;
+        private Font italic;
+        private Color time;
+        private Color text;
+        private Color system;
+        private final Color reactions = Color.ORANGE;
+        private final Color pm = Color.MAGENTA;
+        // Sender -> name color, random but kept for the session
+        private final Map<String, Color> senders = new HashMap<>();
+        private final Random rand = new Random();
+
+        private Row row;
+        private int lastWidth;
+
+        RowView() {
+            setFont(new JLabel().getFont());
+            setDarkMode(false);
+        }
+
+        public void setFont(Font font) {
+            super.setFont(font);
+            plain = font;
+            bold = font.deriveFont(Font.BOLD);
+            italic = font.deriveFont(Font.ITALIC);
+        }
+
+        void setDarkMode(boolean darkMode) {
+            time = darkMode ? Color.LIGHT_GRAY : Color.GRAY;
+            text = darkMode ? Color.WHITE : Color.BLACK;
+            system = darkMode ? Color.CYAN : Color.BLUE;
+        }
+
+        Component show(Row row, JList<?> list) {
+            this.row = row;
+            lastWidth = list.getWidth();
+            setBackground(list.getBackground());
+            // Not on screen yet, measured for real once it has a width
+            if (lastWidth <= 0) {
+                row.height = getFontMetrics(plain).getHeight() + 2 * PAD_Y;
+                return this;
+            }
+            if (row.measuredWidth != lastWidth) {
+                // Only the break positions, the lines themselves are laid out when painted
+                AttributedCharacterIterator styled = styled(row).getIterator();
+                LineBreakMeasurer measurer = new LineBreakMeasurer(styled, frc());
+                float wrap = wrapWidth(lastWidth);
+                int lines = 0;
+                while (measurer.getPosition() < styled.getEndIndex()) {
+                    measurer.setPosition(measurer.nextOffset(wrap));
+                    lines++;
+                }
+                row.height = lines * getFontMetrics(plain).getHeight() + 2 * PAD_Y;
+                row.measuredWidth = lastWidth;
+            }
+            return this;
+        }
+
+        public Dimension getPreferredSize() {
+            return new Dimension(lastWidth, row == null ? 0 : row.height);
+        }
+
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setColor(getBackground());
+            g2.fillRect(0, 0, getWidth(), getHeight());
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            FontMetrics metrics = getFontMetrics(plain);
+            int y = PAD_Y;
+            for (TextLayout line : lines(row, getWidth())) {
+                line.draw(g2, PAD_X, y + metrics.getAscent());
+                y += metrics.getHeight();
+            }
+        }
+
+        private List<TextLayout> lines(Row row, int width) {
+            AttributedCharacterIterator styled = styled(row).getIterator();
+            LineBreakMeasurer measurer = new LineBreakMeasurer(styled, frc());
+            float wrap = wrapWidth(width);
+            List<TextLayout> lines = new ArrayList<>(2);
+            while (measurer.getPosition() < styled.getEndIndex()) {
+                lines.add(measurer.nextLayout(wrap));
+            }
+            return lines;
+        }
+
+        private FontRenderContext frc() {
+            return getFontMetrics(plain).getFontRenderContext();
+        }
+
+        private static float wrapWidth(int width) {
+            return Math.max(width - 2 * PAD_X, 1);
+        }
+
+        private AttributedString styled(Row row) {
+            Runs runs = new Runs();
+            switch (row.kind) {
+                case CHAT:
+                    runs.add("[" + row.time + "] ", plain, time);
+                    runs.add(row.sender, bold, senders.computeIfAbsent(row.sender, k -> randomColor()));
+                    runs.add(": " + row.text, plain, text);
+                    if (!row.reactions.isEmpty()) runs.add(" " + row.reactions, plain, reactions);
+                    break;
+                case PM:
+                    runs.add("[" + row.time + "] [PM] " + row.sender + ": " + row.text, bold, pm);
+                    break;
+                case SYSTEM:
+                    runs.add("[System] " + row.text, italic, system);
+                    break;
+            }
+            return runs.build();
+        }
+
+        private Color randomColor() {
+            float hue = rand.nextFloat();
+            float saturation = 0.7f + rand.nextFloat() * 0.3f; // 0.7 - 1.0
+            float brightness = 0.7f + rand.nextFloat() * 0.3f; // 0.7 - 1.0
+            return Color.getHSBColor(hue, saturation, brightness);
+        }
+    }
+
+    // Text with a font and color per run
+    private static final class Runs {
+        private final StringBuilder text = new StringBuilder();
+        private final List<Run> runs = new ArrayList<>(4);
+
+        void add(String part, Font font, Color color) {
+            runs.add(new Run(text.length(), text.length() + part.length(), font, color));
+            text.append(part);
+        }
+
+        AttributedString build() {
+            AttributedString styled = new AttributedString(text.toString());
+            for (Run run : runs) {
+                if (run.start == run.end) continue;
+                styled.addAttribute(TextAttribute.FONT, run.font, run.start, run.end);
+                styled.addAttribute(TextAttribute.FOREGROUND, run.color, run.start, run.end);
+            }
+            return styled;
+        }
+    }
+
+    private static final class Run {
+        final int start, end;
+        final Font font;
+        final Color color;
+
+        Run(int start, int end, Font font, Color color) {
+            this.start = start;
+            this.end = end;
+            this.font = font;
+            this.color = color;
+        }
+    }
+}
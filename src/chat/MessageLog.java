@@ -0,0 +1,319 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of chat messages and reactions, split into segments named after the first
+// message id they hold. Each segment has a sparse index (every INDEX_INTERVAL-th
+// message -> file position) so a page read starts close to the wanted id and reads the rest through
+// a memory-mapped view, nothing is kept on the heap. Appends only reach the page cache; a periodic
+// flush every FLUSH_MS fsyncs whatever was appended since the last one, one task for every open
+// log, rather than one fsync per message. Nobody waits for it: a message is broadcast before it
+// is on disk, and a crash loses up to FLUSH_MS of messages clients already saw. A log is open
+// until close(), which takes it off the flusher.
+//
+// Record: [int payload length][int crc32 of the rest][byte type][int message id][UTF-8 payload]
+public class MessageLog {
+    static final byte MESSAGE = 1;  // payload: the /msg line as broadcast
+    static final byte REACTION = 2; // payload: emoji and user
+
+    private static final long SEGMENT_BYTES = 64L << 20;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int HEADER = 13;
+    private static final long FLUSH_MS = 10;
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-log-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<MessageLog> open = ConcurrentHashMap.newKeySet();
+
+    static {
+        flusher.scheduleWithFixedDelay(() -> open.forEach(MessageLog::flush), FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private final Path dir;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean dirty;
+    private boolean closed; // guarded by this
+    private int lastMessageId;
+
+    public MessageLog(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        recover();
+        open.add(this);
+    }
+
+    // Highest message id in the log, 0 when empty
+    public int lastMessageId() {
+        return lastMessageId;
+    }
+
+    public void append(byte type, int msgId, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + bytes.length);
+        record.putInt(bytes.length).putInt(0).put(type).putInt(msgId).put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            // Roll on a message, so every segment starts with one
+            if (segment == null || (segment.size >= SEGMENT_BYTES && type == MESSAGE)) {
+                if (segment != null) segment.seal();
+                segment = new Segment(msgId);
+                segments.add(segment);
+            }
+            long position = segment.size;
+            while (record.hasRemaining()) {
+                segment.channel.write(record, position + record.position());
+            }
+            if (type == MESSAGE) {
+                if (segment.messages++ % INDEX_INTERVAL == 0) segment.index(msgId, position);
+                lastMessageId = Math.max(lastMessageId, msgId);
+            }
+            segment.size = position + record.limit();
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sends the messages with fromId <= id < toId to the sink in order and sums up the reactions
+    // to them, reading on until the first message with id >= scanUntilId (reactions are only taken
+    // for recent messages, so none of theirs can be further on). Returns message id -> emoji ->
+    // users who reacted, ascending by id.
+    public SortedMap<Integer, Map<String, Set<String>>> page(int fromId, int toId, int scanUntilId,
+                                                             Consumer<String> messages) {
+        SortedMap<Integer, Map<String, Set<String>>> reactions = new TreeMap<>();
+        List<Segment> snapshot = new ArrayList<>(segments);
+        int first = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.get(i).baseId <= fromId) first = i;
+        }
+        byte[] payload = new byte[256];
+        for (int i = first; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+            long end = segment.size;
+            ByteBuffer buf;
+            try {
+                buf = segment.map(end);
+            } catch (IOException e) {
+                System.out.println("History read failed: " + e.getMessage());
+                return reactions;
+            }
+            buf.position((int) (i == first ? segment.floor(fromId) : 0)).limit((int) end);
+            while (buf.remaining() >= HEADER) {
+                int length = buf.getInt();
+                buf.getInt(); // crc, checked on recovery
+                byte type = buf.get();
+                int msgId = buf.getInt();
+                if (type == MESSAGE && msgId >= scanUntilId) return reactions;
+                if (msgId < fromId || msgId >= toId) {
+                    buf.position(buf.position() + length);
+                    continue;
+                }
+                if (length > payload.length) payload = new byte[Math.max(length, payload.length * 2)];
+                buf.get(payload, 0, length);
+                String text = new String(payload, 0, length, StandardCharsets.UTF_8);
+                if (type == MESSAGE) {
+                    messages.accept(text);
+                } else {
+                    int sep = text.indexOf(' ');
+                    if (sep < 0) continue;
+                    reactions.computeIfAbsent(msgId, k -> new LinkedHashMap<>())
+                            .computeIfAbsent(text.substring(0, sep), k -> new HashSet<>())
+                            .add(text.substring(sep + 1));
+                }
+            }
+        }
+        return reactions;
+    }
+
+    private synchronized void flush() {
+        if (closed || !dirty) return;
+        dirty = false;
+        try {
+            Segment segment = segments.get(segments.size() - 1);
+            segment.channel.force(false);
+            segment.indexChannel.force(false);
+        } catch (IOException e) {
+            System.out.println("History flush failed: " + e.getMessage());
+        }
+    }
+
+    // Flushes what is left and closes every segment's files; appends fail from then on
+    public synchronized void close() {
+        open.remove(this);
+        flush();
+        closed = true;
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    System.out.println("History close failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .forEach(name -> bases.add(Long.parseLong(name.substring(0, name.length() - 4))));
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            segments.add(new Segment((int) base));
+        }
+        // Only the tail can be torn; the message ids come from the newest segment that has any
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            int last = segments.get(i).scanTail(i == segments.size() - 1);
+            if (last > 0) {
+                lastMessageId = last;
+                break;
+            }
+        }
+    }
+
+    private class Segment {
+        final int baseId;
+        final FileChannel channel;
+        final FileChannel indexChannel;
+        volatile long size;
+        int messages;
+
+        // Sparse index, message id -> position, ascending
+        int[] indexIds = new int[16];
+        long[] indexPositions = new long[16];
+        int indexSize;
+
+        MappedByteBuffer mapped;
+
+        Segment(int baseId) throws IOException {
+            this.baseId = baseId;
+            String name = String.format("%020d", baseId);
+            this.channel = FileChannel.open(dir.resolve(name + ".log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(dir.resolve(name + ".idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+            loadIndex();
+        }
+
+        private void loadIndex() throws IOException {
+            ByteBuffer entries = ByteBuffer.allocate((int) indexChannel.size());
+            while (entries.hasRemaining() && indexChannel.read(entries, entries.position()) > 0) {}
+            entries.flip();
+            while (entries.remaining() >= 12) {
+                int id = entries.getInt();
+                long position = entries.getLong();
+                if (position >= size) break;
+                addEntry(id, position);
+            }
+            indexChannel.truncate(indexSize * 12L);
+        }
+
+        void index(int msgId, long position) throws IOException {
+            addEntry(msgId, position);
+            ByteBuffer entry = ByteBuffer.allocate(12).putInt(msgId).putLong(position);
+            entry.flip();
+            indexChannel.write(entry, (indexSize - 1) * 12L);
+        }
+
+        private synchronized void addEntry(int msgId, long position) {
+            if (indexSize == indexIds.length) {
+                indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexIds[indexSize] = msgId;
+            indexPositions[indexSize] = position;
+            indexSize++;
+        }
+
+        // Position of the last indexed message at or before msgId
+        synchronized long floor(int msgId) {
+            int i = Arrays.binarySearch(indexIds, 0, indexSize, msgId);
+            if (i < 0) i = -i - 2;
+            return i < 0 ? 0 : indexPositions[i];
+        }
+
+        // Validates the records after the last index entry, truncating a torn write in the
+        // active segment. Returns the last message id found, 0 if none.
+        int scanTail(boolean active) throws IOException {
+            long position = indexSize == 0 ? 0 : indexPositions[indexSize - 1];
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.position((int) position);
+            int last = 0;
+            messages = indexSize == 0 ? 0 : (indexSize - 1) * INDEX_INTERVAL;
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= HEADER) {
+                int length = buf.getInt();
+                int expected = buf.getInt();
+                if (length < 0 || length + 5 > buf.remaining()) break;
+                ByteBuffer body = buf.slice().limit(length + 5);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected) break;
+                byte type = buf.get();
+                int msgId = buf.getInt();
+                buf.position(buf.position() + length);
+                if (type == MESSAGE) {
+                    last = msgId;
+                    messages++;
+                }
+                position = buf.position();
+            }
+            if (active && position < size) {
+                System.out.println("Truncating torn history record at " + position);
+                channel.truncate(position);
+                size = position;
+                while (indexSize > 0 && indexPositions[indexSize - 1] >= size) indexSize--;
+                indexChannel.truncate(indexSize * 12L);
+            }
+            return last;
+        }
+
+        // Read-only view of [0, end), remapped only when the segment has grown past the last mapping
+        synchronized ByteBuffer map(long end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+            return mapped.duplicate();
+        }
+
+        void seal() throws IOException {
+            channel.force(false);
+            indexChannel.force(false);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            indexChannel.close();
+        }
+    }
+}
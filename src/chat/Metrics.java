@@ -0,0 +1,224 @@
+package chat;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server counters and histograms. Recording is a LongAdder increment, striped per thread under
+// contention, so handlers and event loops never share a lock or a hot cache line. Gauges like
+// queue depth are read from the live state when someone looks, not tracked on the hot path.
+// Everything is published as one snapshot, over JMX (bean "chat:type=Metrics") and as plain
+// "name value" lines on a loopback HTTP port when started with --metrics-port.
+final class Metrics {
+    enum Command { MSG, PM, FILE, REACT, TYPING, OTHER }
+
+    private static final long RATE_TICK_MS = 1000;
+
+    private static final LongAdder[] commands = adders(Command.values().length);
+    // Per second over the last tick, by command
+    private static final long[] lastCommands = new long[Command.values().length];
+    private static volatile long[] commandRates = new long[Command.values().length];
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder connections = new LongAdder();
+    private static final Histogram fanOut = new Histogram();
+
+    private Metrics() {}
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    static void command(Command command) {
+        commands[command.ordinal()].increment();
+    }
+
+    static void bytesIn(long n) {
+        if (n > 0) bytesIn.add(n);
+    }
+
+    static void bytesOut(long n) {
+        if (n > 0) bytesOut.add(n);
+    }
+
+    static void connected() {
+        connections.increment();
+    }
+
+    // Time to hand one broadcast to every local member's queue
+    static void fanOut(long nanos) {
+        fanOut.record(nanos / 1000);
+    }
+
+    // Registers the bean, starts the rate tick and, if port > 0, the scrape endpoint
+    static void start(int port) throws IOException {
+        ChatServer.timers.scheduleAtFixedRate(Metrics::tick, RATE_TICK_MS, RATE_TICK_MS, TimeUnit.MILLISECONDS);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics bean: " + e.getMessage());
+        }
+        if (port <= 0) return;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            StringBuilder text = new StringBuilder();
+            snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics on http://localhost:" + port + "/metrics");
+    }
+
+    // Timer thread only
+    private static void tick() {
+        long[] rates = new long[lastCommands.length];
+        for (int i = 0; i < rates.length; i++) {
+            long count = commands[i].sum();
+            rates[i] = (count - lastCommands[i]) * 1000 / RATE_TICK_MS;
+            lastCommands[i] = count;
+        }
+        commandRates = rates;
+    }
+
+    // Name -> value, in a stable order
+    static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("clients_connected", ChatServer.userMap.size());
+        values.put("connections_total", connections.sum());
+        long[] rates = commandRates;
+        for (Command command : Command.values()) {
+            String name = command.name().toLowerCase();
+            values.put("commands_total_" + name, commands[command.ordinal()].sum());
+            values.put("commands_per_sec_" + name, rates[command.ordinal()]);
+        }
+        values.put("bytes_in_total", bytesIn.sum());
+        values.put("bytes_out_total", bytesOut.sum());
+
+        long queued = 0;
+        int maxQueued = 0;
+        for (ChatServer.ClientHandler client : ChatServer.userMap.values()) {
+            int depth = client.queued();
+            queued += depth;
+            maxQueued = Math.max(maxQueued, depth);
+        }
+        values.put("outbound_queued_total", queued);
+        values.put("outbound_queued_max", maxQueued);
+
+        long[] history = new long[1];
+        ChatServer.forEachRoom(room -> history[0] += room.messagesInMemory());
+        values.put("history_messages_in_memory", history[0]);
+
+        values.put("broadcast_fanout_count", fanOut.count());
+        values.put("broadcast_fanout_mean_us", fanOut.mean());
+        values.put("broadcast_fanout_p50_us", fanOut.percentile(0.50));
+        values.put("broadcast_fanout_p99_us", fanOut.percentile(0.99));
+        values.put("broadcast_fanout_max_us", fanOut.max());
+        return values;
+    }
+
+    // Power-of-two buckets: bucket i holds values below 2^i, so a percentile is exact to within 2x
+    static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = adders(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private volatile long max;
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            sum.add(value);
+            // Racy on purpose, a lost update only understates the max until the next slow one
+            if (value > max) max = value;
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        long mean() {
+            long count = count();
+            return count == 0 ? 0 : sum.sum() / count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        // Upper bound of the bucket the quantile falls in
+        long percentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) return Math.min(max, (1L << i) - 1);
+            }
+            return 0;
+        }
+    }
+
+    // Read-only JMX view of the snapshot, one attribute per value
+    static final class Bean implements DynamicMBean {
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Number value = snapshot().get(name);
+            if (value == null) throw new AttributeNotFoundException(name);
+            return value.longValue();
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                Number value = values.get(name);
+                if (value != null) list.add(new Attribute(name, value.longValue()));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        // No operations, only attributes
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
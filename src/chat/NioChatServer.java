@@ -0,0 +1,323 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking server mode: a fixed pool of selector threads instead of one thread per client.
+// Speaks the same line protocol as the blocking mode, the command handling lives in ClientHandler.
+public class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // TLS handshake tasks (certificate and key exchange work) run here rather than on the event
+    // loops, so a reconnect wave doesn't hold up the traffic of everyone else on them
+    private static ExecutorService handshakes;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    public NioChatServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        if (ChatServer.tls != null) {
+            handshakes = Executors.newFixedThreadPool(loopCount, r -> {
+                Thread thread = new Thread(r, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.start();
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        int next = 0;
+        while (true) {
+            SocketChannel channel = server.accept();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections waiting for their flush, in deadline order since the linger is fixed
+        private final ArrayDeque<NioConnection> due = new ArrayDeque<>();
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Runs the task on this loop's thread; safe to call from any thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // Loop thread only: flush at the end of this turn, or once the linger is up
+        void flushLater(NioConnection connection) {
+            long linger = ChatServer.flushPolicy == ChatServer.FlushPolicy.LINGER ? ChatServer.flushLingerMs : 0;
+            connection.flushAt = System.nanoTime() + linger * 1_000_000;
+            due.add(connection);
+        }
+
+        private void flushDue() {
+            long now = System.nanoTime();
+            while (!due.isEmpty() && due.peek().flushAt - now <= 0) {
+                due.poll().flushNow();
+            }
+        }
+
+        private void select() throws IOException {
+            if (due.isEmpty()) {
+                selector.select();
+                return;
+            }
+            long waitMs = (due.peek().flushAt - System.nanoTime()) / 1_000_000;
+            if (waitMs <= 0) selector.selectNow();
+            else selector.select(waitMs);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    System.out.println("Connection error: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    select();
+                } catch (IOException e) {
+                    System.out.println("Selector error: " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        System.out.println("Connection error: " + e.getMessage());
+                        connection.closeNow();
+                    }
+                }
+
+                // Everything queued during the turn goes out together
+                flushDue();
+            }
+        }
+    }
+
+    static class NioConnection implements ChatServer.Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // TLS over the channel, null for plain connections
+        private final TlsChannel tls;
+        private final ChatServer.ClientHandler handler;
+        private SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final InboundDecoder decoder;
+
+        private final OutboundQueue outbound = new OutboundQueue(ChatServer.queueCapacity);
+        private final FrameWriter writer = new FrameWriter(outbound);
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private long flushAt;
+
+        private volatile boolean closing;
+        private boolean closed;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.tls = ChatServer.tls == null ? null
+                    : TlsChannel.server(ChatServer.tls, channel, handshakes, () -> loop.execute(this::resumeTls));
+            this.handler = new ChatServer.ClientHandler(this);
+            this.decoder = new InboundDecoder(handler);
+        }
+
+        public void send(Frame frame) {
+            if (closing) return;
+            if (!outbound.offer(frame)) {
+                System.out.println("Disconnecting slow client " + channel.socket().getRemoteSocketAddress());
+                closing = true;
+                loop.execute(this::closeNow);
+                return;
+            }
+            scheduleWrite();
+        }
+
+        public int queued() {
+            return outbound.size();
+        }
+
+        public boolean isOpen() {
+            return !closing;
+        }
+
+        // Closes once everything already queued has been written
+        public void close() {
+            closing = true;
+            writeScheduled.set(true);
+            loop.execute(this::enableWrite);
+        }
+
+        private void scheduleWrite() {
+            if (!writeScheduled.compareAndSet(false, true)) return;
+            if (ChatServer.flushPolicy == ChatServer.FlushPolicy.IMMEDIATE) {
+                loop.execute(this::flushNow);
+            } else if (loop.inLoop()) {
+                // Sent while handling a read on this loop, goes out with the rest of the turn
+                loop.flushLater(this);
+            } else {
+                loop.execute(() -> loop.flushLater(this));
+            }
+        }
+
+        private void flushNow() {
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                System.out.println("Connection error: " + e.getMessage());
+                closeNow();
+            }
+        }
+
+        private void enableWrite() {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void read() throws IOException {
+            if (tls != null) {
+                readTls();
+                return;
+            }
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            decode(n);
+        }
+
+        private boolean decode(int n) {
+            Metrics.bytesIn(n);
+            readBuffer.flip();
+            boolean open = closing || decoder.decode(readBuffer);
+            readBuffer.clear();
+            if (!open) close();
+            return open;
+        }
+
+        // Until the engine has nothing left: a record can hold more than the read buffer, and
+        // the selector won't fire again for bytes already off the socket
+        private void readTls() throws IOException {
+            int n;
+            while ((n = tls.read(readBuffer)) > 0) {
+                if (!decode(n)) return;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            if (tls.wantsWrite()) enableWrite();
+            // Nothing to read until the handshake task is done, resumeTls turns reads back on
+            if (tls.isRunningTask() && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // A handshake task finished on the handshake pool: carry on from where it stopped
+        private void resumeTls() {
+            if (closed) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            try {
+                readTls();
+            } catch (IOException | CancelledKeyException e) {
+                System.out.println("Connection error: " + e.getMessage());
+                closeNow();
+            }
+        }
+
+        // Called when a scheduled flush is due, and on OP_WRITE once the socket had filled up
+        void flush() throws IOException {
+            if (closed) return;
+            if (tls != null && !tls.flush()) {
+                enableWrite();
+                return;
+            }
+            // A handshake that was waiting for the socket to drain goes on with whatever came in
+            if (tls != null && tls.isHandshaking()) {
+                readTls();
+                if (closed) return;
+            }
+            if (!writer.flush(tls != null ? tls : channel)) {
+                enableWrite(); // keep OP_WRITE until the socket drains
+                return;
+            }
+
+            if (closing) {
+                closeNow();
+                return;
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) key.interestOps(SelectionKey.OP_READ);
+            writeScheduled.set(false);
+            // A send may have raced with the flag reset
+            if (!outbound.isEmpty()) scheduleWrite();
+        }
+
+        void closeNow() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            if (key != null) key.cancel();
+            try {
+                if (tls != null) tls.close();
+                channel.close();
+            } catch (IOException e) {}
+            writer.close();
+            decoder.close();
+            handler.disconnect();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of frames waiting to be written to one client. Producers never block on a slow
+// reader: when the queue is full the frame's overflow policy decides what happens.
+public class OutboundQueue {
+    enum Overflow {
+        DROP_OLDEST, // make room by dropping the oldest droppable message, or drop this one
+        DISCONNECT   // the client can't keep up, cut it off
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Frame> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Returns false when the client should be disconnected
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (entries.size() >= capacity && !dropOldest()) {
+                return frame.overflow() == Overflow.DROP_OLDEST;
+            }
+            entries.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldest() {
+        Iterator<Frame> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().overflow() == Overflow.DROP_OLDEST) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves up to into.length queued frames into the array, returns how many.
+    // A batch ends at a file frame so its body can follow it on the wire, and at a switch to compression.
+    public int poll(Frame[] into) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < into.length && !entries.isEmpty()) {
+                Frame frame = entries.poll();
+                into[n++] = frame;
+                if (frame.endsBatch()) break;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits until there is something to write; false once closed and drained
+    public boolean await() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return !entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to ms for at least batch frames to be queued
+    public void linger(int batch, long ms) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = ms * 1_000_000;
+            while (entries.size() < batch && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Further offers are ignored, take() drains what is left and then returns null
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
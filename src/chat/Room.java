@@ -0,0 +1,373 @@
+package chat;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// One named room: its members, message ids, history, reactions and who is typing. Rooms share
+// no state or locks, so traffic in one never waits on another, and a broadcast only touches the
+// room's own members.
+//
+// In a cluster only the room's owner node keeps all of that; it also knows the members on other
+// nodes and sends them the room's lines through their node. Elsewhere the room only has its
+// local members, and whatever they do is forwarded to the owner.
+class Room {
+    static final String LOBBY = "general";
+    // Letters, digits, '-' and '_', so a name is always a safe directory name
+    static final String NAME_PATTERN = "[A-Za-z0-9_-]{1,32}";
+
+    // Newest messages kept in memory, a power of two; reactions are only taken for these
+    private static final int HISTORY_RING = 1024;
+    private static final int MAX_HISTORY_PAGE = 200;
+    private static final long TYPING_TIMEOUT_MS = 5000;
+
+    final String name;
+    final int owner;
+    private final Cluster cluster;
+    private final Set<ChatServer.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    // Owner only: members logged in on other nodes -> their node
+    private final Map<String, Integer> remoteMembers = new ConcurrentHashMap<>();
+    // Owner only, the rest is null elsewhere
+    private final MessageLog log;
+    // Hands out message ids and serves recent pages without locking
+    private final HistoryRing history;
+    // Messages whose reactions changed since the last flush
+    private final Set<Integer> reactionsChanged = ConcurrentHashMap.newKeySet();
+    // User -> when their typing start runs out, and the set last sent (timer thread only)
+    private final Map<String, Long> typing = new ConcurrentHashMap<>();
+    private String typingSent = "";
+    // Presence: members who joined or left since the last flush, and the member list as last sent
+    // with its version. A joiner gets that list, "/users version user ...", and everyone gets the
+    // changes on top of it once per flush, "/presence version +user -user ...".
+    private final Set<String> presenceChanged = ConcurrentHashMap.newKeySet();
+    private final Set<String> presenceSent = new LinkedHashSet<>(); // guarded by itself
+    private int presenceVersion;
+    // Last looked up or left, for closing rooms nobody uses
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    // Owned here
+    Room(String name, Cluster cluster, MessageLog log) {
+        this.name = name;
+        this.cluster = cluster;
+        this.owner = cluster.self;
+        this.log = log;
+        this.history = loadHistory();
+    }
+
+    // Owned by another node
+    Room(String name, Cluster cluster) {
+        this.name = name;
+        this.cluster = cluster;
+        this.owner = cluster.owner(name);
+        this.log = null;
+        this.history = null;
+    }
+
+    boolean isOwned() {
+        return log != null;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Nobody in it, here or on another node, since before the cutoff
+    boolean idleSince(long cutoff) {
+        return members.isEmpty() && remoteMembers.isEmpty() && lastUsed < cutoff;
+    }
+
+    // Once it is out of the room map; a later join opens it again from its log
+    void close() {
+        if (isOwned()) log.close();
+    }
+
+    // Messages held in memory for recent pages, 0 where the room is owned by another node
+    int messagesInMemory() {
+        return isOwned() ? history.size() : 0;
+    }
+
+    // Warms the ring with the tail of the log, reactions included, so they carry over a restart
+    private HistoryRing loadHistory() {
+        int nextId = log.lastMessageId() + 1;
+        HistoryRing ring = new HistoryRing(HISTORY_RING, nextId);
+        Map<Integer, Map<String, Set<String>>> reactions = log.page(Math.max(1, nextId - HISTORY_RING),
+                nextId, Integer.MAX_VALUE, line -> ring.load(Integer.parseInt(line.split(" ", 3)[1]), line));
+        for (Map.Entry<Integer, Map<String, Set<String>>> entry : reactions.entrySet()) {
+            HistoryRing.Entry message = ring.entry(entry.getKey());
+            if (message == null) continue;
+            for (Map.Entry<String, Set<String>> emoji : entry.getValue().entrySet()) {
+                Set<String> users = ConcurrentHashMap.newKeySet();
+                users.addAll(emoji.getValue());
+                message.reactions.put(emoji.getKey(), users);
+            }
+        }
+        return ring;
+    }
+
+    void join(ChatServer.ClientHandler client) {
+        members.add(client);
+        if (!isOwned()) {
+            cluster.send(owner, "join " + name + " " + client.getUserName());
+            return;
+        }
+        broadcast("/notify " + client.getUserName() + " joined #" + name + ".");
+        presenceChanged.add(client.getUserName());
+        sendPresence(client::sendMessage);
+    }
+
+    void leave(ChatServer.ClientHandler client) {
+        if (!members.remove(client)) return;
+        touch();
+        if (!isOwned()) {
+            cluster.send(owner, "leave " + name + " " + client.getUserName());
+            return;
+        }
+        left(client.getUserName());
+    }
+
+    // Owner side of a member on another node joining; quietly when it only comes back with its node
+    void joinRemote(int node, String userName, boolean notify) {
+        if (!isOwned()) return;
+        remoteMembers.put(userName, node);
+        if (notify) broadcast("/notify " + userName + " joined #" + name + ".");
+        presenceChanged.add(userName);
+        sendPresence(line -> cluster.send(node, "to " + userName + " " + line));
+    }
+
+    void leaveRemote(String userName) {
+        if (isOwned() && remoteMembers.remove(userName) != null) {
+            touch();
+            left(userName);
+        }
+    }
+
+    // The node's link went down, its members go with it
+    void dropNode(int node) {
+        if (!isOwned()) return;
+        for (Iterator<Map.Entry<String, Integer>> it = remoteMembers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Integer> member = it.next();
+            if (member.getValue() != node) continue;
+            it.remove();
+            presenceChanged.add(member.getKey());
+        }
+    }
+
+    private void left(String userName) {
+        typing.remove(userName);
+        broadcast("/notify " + userName + " left #" + name + ".");
+        presenceChanged.add(userName);
+    }
+
+    // Sent to every member, wherever they are; only called on the owner or for the room's own lines
+    void broadcast(String message) {
+        // Encoded once; only enqueued here, the writes happen on each client's writer
+        broadcastLocal(Frame.of(message), null);
+        if (remoteMembers.isEmpty()) return;
+        for (int node : new HashSet<>(remoteMembers.values())) {
+            cluster.send(node, "room " + name + " " + message);
+        }
+    }
+
+    // A line from the owner for this node's members
+    void deliver(String message) {
+        broadcastLocal(Frame.of(message), null);
+    }
+
+    void broadcastLocal(Frame frame, ChatServer.ClientHandler except) {
+        long start = System.nanoTime();
+        for (ChatServer.ClientHandler client : members) {
+            if (client != except) client.send(frame);
+        }
+        Metrics.fanOut(System.nanoTime() - start);
+    }
+
+    // A client that missed a presence change asks for the list again with /users
+    void requestPresence(ChatServer.ClientHandler client) {
+        if (!isOwned()) {
+            cluster.send(owner, "presence " + name + " " + client.getUserName());
+            return;
+        }
+        sendPresence(client::sendMessage);
+    }
+
+    // The list as of the last flush, so the next change applies to it; the joiner shows up in that one
+    void sendPresence(Consumer<String> client) {
+        if (!isOwned()) return;
+        StringBuilder line = new StringBuilder("/users ");
+        synchronized (presenceSent) {
+            line.append(presenceVersion);
+            for (String userName : presenceSent) {
+                line.append(' ').append(userName);
+            }
+            client.accept(line.toString());
+        }
+    }
+
+    // One line for whoever joined or left since the last one; a quick leave and rejoin sends nothing
+    void flushPresence() {
+        if (!isOwned() || presenceChanged.isEmpty()) return;
+        synchronized (presenceSent) {
+            StringBuilder line = new StringBuilder("/presence ").append(presenceVersion + 1);
+            int length = line.length();
+            for (Iterator<String> it = presenceChanged.iterator(); it.hasNext(); ) {
+                String userName = it.next();
+                it.remove();
+                if (isMember(userName)) {
+                    if (presenceSent.add(userName)) line.append(" +").append(userName);
+                } else if (presenceSent.remove(userName)) {
+                    line.append(" -").append(userName);
+                }
+            }
+            if (line.length() == length) return;
+            presenceVersion++;
+            broadcast(line.toString());
+        }
+    }
+
+    private boolean isMember(String userName) {
+        if (remoteMembers.containsKey(userName)) return true;
+        ChatServer.ClientHandler client = ChatServer.userMap.get(userName);
+        return client != null && members.contains(client);
+    }
+
+    void post(String userName, String text) {
+        if (!isOwned()) {
+            cluster.send(owner, "post " + name + " " + userName + " " + text);
+            return;
+        }
+        // Sending ends typing, the client starts over with its next keystroke
+        typing.remove(userName);
+        int msgId = history.claim();
+        String fullMsg = "/msg " + msgId + " " + userName + " " + text;
+        history.publish(msgId, fullMsg);
+        // The log takes messages in id order, whoever sent them
+        history.drain(entry -> append(MessageLog.MESSAGE, entry.id, entry.line));
+
+        // The id travels in the message itself
+        broadcast(fullMsg);
+    }
+
+    // Counted on the message's ring entry and sent out with the next flush
+    void react(int msgId, String emoji, String reactingUser) {
+        if (!isOwned()) {
+            cluster.send(owner, "react " + name + " " + msgId + " " + emoji + " " + reactingUser);
+            return;
+        }
+        HistoryRing.Entry entry = history.entry(msgId);
+        if (entry == null) return;
+        if (!entry.reactions.computeIfAbsent(emoji, k -> ConcurrentHashMap.newKeySet()).add(reactingUser)) return;
+        append(MessageLog.REACTION, msgId, emoji + " " + reactingUser);
+        reactionsChanged.add(msgId);
+    }
+
+    void typing(String userName, boolean start) {
+        if (!isOwned()) {
+            cluster.send(owner, "typing " + name + " " + userName + " " + (start ? 1 : 0));
+            return;
+        }
+        if (start) typing.put(userName, System.currentTimeMillis() + TYPING_TIMEOUT_MS);
+        else typing.remove(userName);
+    }
+
+    // A failed write is logged, the message still goes out
+    private void append(byte type, int msgId, String payload) {
+        try {
+            log.append(type, msgId, payload);
+        } catch (IOException e) {
+            System.out.println("History write failed in #" + name + ": " + e.getMessage());
+        }
+    }
+
+    // One line per message with the new totals, however many reactions came in since the last one
+    void flushReactions() {
+        if (!isOwned()) return;
+        for (Iterator<Integer> it = reactionsChanged.iterator(); it.hasNext(); ) {
+            HistoryRing.Entry entry = history.entry(it.next());
+            it.remove();
+            if (entry != null) broadcast(reactionsLine(entry.id, entry.reactions));
+        }
+    }
+
+    // Format: /typing user1 user2 ..., empty when nobody is
+    void flushTyping() {
+        if (!isOwned()) return;
+        long now = System.currentTimeMillis();
+        typing.values().removeIf(expires -> expires < now);
+        String users = String.join(" ", new TreeSet<>(typing.keySet()));
+        if (users.equals(typingSent)) return;
+        typingSent = users;
+        broadcast("/typing " + users);
+    }
+
+    // Format: /reactions msgId emoji count [emoji count ...]
+    static String reactionsLine(int msgId, Map<String, Set<String>> reactions) {
+        StringBuilder line = new StringBuilder("/reactions ").append(msgId);
+        for (Map.Entry<String, Set<String>> emoji : reactions.entrySet()) {
+            line.append(' ').append(emoji.getKey()).append(' ').append(emoji.getValue().size());
+        }
+        return line.toString();
+    }
+
+    // The owner answers, straight to the member's node
+    void requestHistory(ChatServer.ClientHandler client, int beforeId, int limit) {
+        if (!isOwned()) {
+            cluster.send(owner, "history " + name + " " + client.getUserName() + " " + beforeId + " " + limit);
+            return;
+        }
+        sendHistoryPage(client::sendMessage, beforeId, limit);
+    }
+
+    void requestResume(ChatServer.ClientHandler client, int afterId) {
+        if (!isOwned()) {
+            cluster.send(owner, "resume " + name + " " + client.getUserName() + " " + afterId);
+            return;
+        }
+        sendResume(client::sendMessage, afterId);
+    }
+
+    // What a client still showing the room up to afterId missed: "/resume name fromId", then the
+    // messages from fromId on and their reactions. When more than a page was missed fromId skips
+    // ahead, the client starts its view over from there and scrolls back with /history as usual.
+    void sendResume(Consumer<String> client, int afterId) {
+        if (!isOwned()) return;
+        int nextId = history.nextId();
+        int fromId = Math.max(1, Math.max(Math.min(afterId + 1, nextId), nextId - MAX_HISTORY_PAGE));
+        client.accept("/resume " + name + " " + fromId);
+        sendMessages(client, fromId, nextId);
+    }
+
+    // Up to limit messages before beforeId, from the ring or else the mapped log, followed by one
+    // "/reactions id emoji count ..." line per message that has any. The page is framed by
+    // "/historypage beforeId" and "/historyend beforeId oldestId", oldestId 0 if it was empty.
+    void sendHistoryPage(Consumer<String> client, int beforeId, int limit) {
+        if (!isOwned()) return;
+        beforeId = Math.min(Math.max(beforeId, 1), history.nextId());
+        limit = Math.min(Math.max(limit, 1), MAX_HISTORY_PAGE);
+        int fromId = Math.max(1, beforeId - limit);
+        client.accept("/historypage " + beforeId);
+        sendMessages(client, fromId, beforeId);
+        client.accept("/historyend " + beforeId + " " + (fromId < beforeId ? fromId : 0));
+    }
+
+    // Messages fromId up to beforeId, then the reactions of those that have any
+    private void sendMessages(Consumer<String> client, int fromId, int beforeId) {
+        List<HistoryRing.Entry> recent = history.snapshot(fromId, beforeId);
+        if (recent != null) {
+            for (HistoryRing.Entry entry : recent) {
+                client.accept(entry.line);
+            }
+            for (HistoryRing.Entry entry : recent) {
+                if (!entry.reactions.isEmpty()) client.accept(reactionsLine(entry.id, entry.reactions));
+            }
+        } else {
+            // Reactions to a message are logged before it leaves the ring, give or take those
+            // racing the overwrite, so the scan can stop well short of the end of the log
+            Map<Integer, Map<String, Set<String>>> reactions =
+                    log.page(fromId, beforeId, beforeId + 2 * HISTORY_RING, client);
+            for (Map.Entry<Integer, Map<String, Set<String>>> entry : reactions.entrySet()) {
+                client.accept(reactionsLine(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What this node keeps of a user between connections: the token a client presents with
+// "/resume token name" to take its place back after a drop, the room it was in with the last
+// message id it acked there, and the private messages sent while it was away. Those are held in
+// memory up to SPOOL_MEMORY, then appended to a file of the user's own, one per line with
+// backslashes and line breaks escaped, and refused past SPOOL_MAX. They are handed over a batch
+// at a time and only let go once the client's queue has drained past the batch, so a connection
+// that drops partway through keeps the rest held. The session goes once the user has been away
+// for the session TTL; held messages stay on disk and are handed over at the next login with
+// that name.
+final class Session {
+    private static final int SPOOL_MEMORY = 32;
+    private static final int SPOOL_MAX = 1000;
+    // Well under the outbound queue's capacity, with room for live traffic next to it
+    private static final int DELIVER_BATCH = 64;
+    private static final long DELIVER_CHECK_MS = 20;
+    private static final SecureRandom random = new SecureRandom();
+
+    final String name;
+    private final Path spoolFile;
+
+    // Guarded by this
+    // Replaced at every login, so only the connection that got it last can resume
+    private byte[] token;
+    private ChatServer.ClientHandler client;
+    private long leftAt;
+    private String room;
+    private int acked;
+    private final ArrayDeque<String> held = new ArrayDeque<>();
+    // Lines in the spool file past those loaded; while there are any, later messages go there
+    // too so order holds
+    private int spilled;
+    // Lines loaded into held for delivery that are still the first lines of the spool file,
+    // held has nothing else while there are any
+    private int loaded;
+    // Lines at the head of held that were sent and not yet seen written
+    private int inFlight;
+
+    Session(String name) {
+        this.name = name;
+        this.spoolFile = ChatServer.spoolDir.resolve(FileStore.hex(sha256(name)));
+        // Left over from an expired session or an earlier run
+        if (Files.exists(spoolFile)) {
+            try {
+                spilled = Files.readAllLines(spoolFile, StandardCharsets.UTF_8).size();
+            } catch (IOException e) {
+                System.out.println("Could not read held messages for " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] sha256(String s) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A fresh token for the connection just attached, the previous one no longer resumes
+    synchronized String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String hex = FileStore.hex(bytes);
+        token = hex.getBytes(StandardCharsets.US_ASCII);
+        return hex;
+    }
+
+    // Constant time, so a guess learns nothing from how long the answer took
+    synchronized boolean matches(String token) {
+        return this.token != null && MessageDigest.isEqual(this.token, token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    synchronized void attach(ChatServer.ClientHandler client) {
+        this.client = client;
+        inFlight = 0;
+    }
+
+    // Only the connection the session is on; one that was taken over has nothing to say
+    synchronized void detach(ChatServer.ClientHandler client) {
+        if (this.client != client) return;
+        this.client = null;
+        inFlight = 0;
+        // Back to the file they never left
+        if (loaded > 0) {
+            held.clear();
+            spilled += loaded;
+            loaded = 0;
+        }
+        leftAt = System.currentTimeMillis();
+    }
+
+    // A room entered from scratch: no cursor until the client acks something in it
+    synchronized void enter(String room) {
+        this.room = room;
+        acked = 0;
+    }
+
+    synchronized void resume(String room, int acked) {
+        this.room = room;
+        this.acked = acked;
+    }
+
+    synchronized void ack(String room, int msgId) {
+        if (room.equals(this.room) && msgId > acked) acked = msgId;
+    }
+
+    synchronized String room() {
+        return room;
+    }
+
+    synchronized int acked() {
+        return acked;
+    }
+
+    // A private message for the user, false once the spool is full
+    synchronized boolean hold(String line) {
+        // Came back while the message was on its way, and nothing older is still waiting
+        if (client != null && held.isEmpty() && spilled == 0) {
+            client.sendMessage(line);
+            return true;
+        }
+        if (held.size() + spilled >= SPOOL_MAX) return false;
+        if (spilled == 0 && loaded == 0 && held.size() < SPOOL_MEMORY) {
+            held.add(line);
+        } else {
+            try {
+                Files.createDirectories(spoolFile.getParent());
+                Files.write(spoolFile, List.of(escape(line)), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                spilled++;
+            } catch (IOException e) {
+                System.out.println("Could not hold a message for " + name + ": " + e.getMessage());
+                return false;
+            }
+        }
+        deliverHeld();
+        return true;
+    }
+
+    // The next batch of held messages, in the order they were sent, to the attached client
+    synchronized void deliverHeld() {
+        if (client == null || inFlight > 0) return;
+        if (held.isEmpty() && spilled > 0 && !loadBatch()) return;
+        if (held.isEmpty()) return;
+        inFlight = Math.min(DELIVER_BATCH, held.size());
+        Iterator<String> lines = held.iterator();
+        for (int i = 0; i < inFlight; i++) {
+            client.sendMessage(lines.next());
+        }
+        checkWritten(client);
+    }
+
+    private void checkWritten(ChatServer.ClientHandler to) {
+        ChatServer.timers.schedule(() -> written(to), DELIVER_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // The batch is let go once the client's queue is empty, i.e. the writer has taken it
+    private synchronized void written(ChatServer.ClientHandler to) {
+        // Left or was taken over: the batch stays held for the next connection
+        if (client != to || !to.isOpen()) return;
+        if (to.queued() > 0) {
+            checkWritten(to);
+            return;
+        }
+        if (loaded > 0 && !dropLoaded()) return;
+        for (int i = 0; i < inFlight; i++) {
+            held.poll();
+        }
+        inFlight = 0;
+        deliverHeld();
+    }
+
+    // The next batch from the spool file; it stays in the file until it has been written
+    private boolean loadBatch() {
+        try {
+            List<String> lines = Files.readAllLines(spoolFile, StandardCharsets.UTF_8);
+            loaded = Math.min(DELIVER_BATCH, lines.size());
+            for (String line : lines.subList(0, loaded)) {
+                held.add(unescape(line));
+            }
+            spilled = lines.size() - loaded;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not deliver held messages to " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean dropLoaded() {
+        try {
+            List<String> lines = Files.readAllLines(spoolFile, StandardCharsets.UTF_8);
+            List<String> rest = lines.subList(Math.min(loaded, lines.size()), lines.size());
+            if (rest.isEmpty()) Files.delete(spoolFile);
+            else Files.write(spoolFile, rest, StandardCharsets.UTF_8);
+            loaded = 0;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not update held messages for " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // A spool record is one line of the file whatever the message holds
+    private static String escape(String line) {
+        if (line.indexOf('\\') < 0 && line.indexOf('\n') < 0 && line.indexOf('\r') < 0) return line;
+        StringBuilder record = new StringBuilder(line.length() + 8);
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\') record.append("\\\\");
+            else if (c == '\n') record.append("\\n");
+            else if (c == '\r') record.append("\\r");
+            else record.append(c);
+        }
+        return record.toString();
+    }
+
+    private static String unescape(String record) {
+        if (record.indexOf('\\') < 0) return record;
+        StringBuilder line = new StringBuilder(record.length());
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == '\\' && i + 1 < record.length()) {
+                char next = record.charAt(++i);
+                line.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                line.append(c);
+            }
+        }
+        return line.toString();
+    }
+
+    // True when the user has been away since before the cutoff; whatever is still held in
+    // memory is written out first, ahead of what was already spilled
+    synchronized boolean expire(long cutoff) {
+        if (client != null || leftAt >= cutoff) return false;
+        if (held.isEmpty()) return true;
+        try {
+            List<String> lines = new ArrayList<>();
+            for (String line : held) {
+                lines.add(escape(line));
+            }
+            if (spilled > 0) lines.addAll(Files.readAllLines(spoolFile, StandardCharsets.UTF_8));
+            Files.createDirectories(spoolFile.getParent());
+            Files.write(spoolFile, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Could not keep held messages for " + name + ": " + e.getMessage());
+        }
+        return true;
+    }
+}
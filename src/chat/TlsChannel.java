@@ -0,0 +1,364 @@
+package chat;
+
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// TLS over a client's SocketChannel, blocking or not, on an SSLEngine so the NIO loops can use it
+// in place of the plain channel. Reads hand back decrypted bytes; writes take plaintext and count
+// it as written once it is wrapped, and whatever the socket didn't take waits for the next write
+// or flush(). Handshake tasks (certificate and key exchange work) run on the given executor and
+// resume is called once they're done, so an event loop never runs them itself.
+//
+// The buffers are direct and taken from a shared pool only while they hold something, so a quiet
+// connection holds none. Safe for one reader and one writer thread, as in the blocking mode.
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    // Covers a whole TLS record, larger ones get a buffer of their own
+    private static final int BUFFER_SIZE = 17 * 1024;
+    private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 4096);
+    // Sessions kept for resumption: a reconnecting client skips the certificate and key exchange
+    private static final int SESSION_CACHE = 20_000;
+    private static final int SESSION_TIMEOUT_S = 12 * 60 * 60;
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Executor tasks;
+    private final Runnable resume;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ByteBuffer netIn;  // received, not unwrapped yet
+    private ByteBuffer appIn;  // unwrapped, not read yet
+    private ByteBuffer netOut; // wrapped, not sent yet (flipped)
+    private boolean needData;  // the last unwrap wanted more than netIn had
+    private volatile boolean taskRunning;
+    private volatile boolean closed;
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine, Executor tasks, Runnable resume) {
+        this.channel = channel;
+        this.engine = engine;
+        this.tasks = tasks;
+        this.resume = resume;
+    }
+
+    static TlsChannel server(SSLContext context, SocketChannel channel, Executor tasks, Runnable resume) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine, tasks, resume);
+    }
+
+    // One PKCS12 keystore as both the server's key and what clients trust, e.g. a self-signed one
+    // from keytool; a client only needs the certificate in it
+    static SSLContext context(Path keystore, char[] password) throws IOException {
+        try (InputStream in = Files.newInputStream(keystore)) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+    // Blocking channels only: runs the handshake to the end before anything is read or written
+    void handshake() throws IOException {
+        readLock.lock();
+        try {
+            engine.beginHandshake();
+            while (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+                if (step() < 0) throw new EOFException("Closed during the TLS handshake");
+            }
+        } finally {
+            if (closed) releaseInbound();
+            readLock.unlock();
+        }
+    }
+
+    boolean isHandshaking() {
+        return engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    // Reads give nothing until the task is done and resume was called
+    boolean isRunningTask() {
+        return taskRunning;
+    }
+
+    // Decrypted bytes into dst: 0 while waiting for the socket or a handshake task, -1 at the end
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (appIn == null || appIn.position() == 0) {
+                int progress = step();
+                if (progress <= 0) return progress;
+            }
+            appIn.flip();
+            int n = Math.min(dst.remaining(), appIn.remaining());
+            ByteBuffer part = appIn.slice();
+            part.limit(n);
+            dst.put(part);
+            appIn.position(appIn.position() + n);
+            appIn.compact();
+            releaseIdle();
+            return n;
+        } finally {
+            if (closed) releaseInbound();
+            readLock.unlock();
+        }
+    }
+
+    // One move of the engine: starts its tasks, sends its handshake records, or unwraps a record,
+    // reading more first if it has to. -1 at the end of the stream, 0 when it has to wait.
+    private int step() throws IOException {
+        if (taskRunning) return 0;
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runTasks();
+                return taskRunning ? 0 : 1;
+            case NEED_WRAP:
+                return flush() ? 1 : 0;
+            default:
+                break;
+        }
+        if (engine.isInboundDone()) return -1;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (netIn == null) netIn = BUFFERS.acquire(packetSize);
+        if (netIn.position() == 0 || needData) {
+            if (!netIn.hasRemaining()) netIn = grow(netIn, packetSize);
+            int n = channel.read(netIn);
+            if (n < 0) {
+                closeInbound();
+                return -1;
+            }
+            if (n == 0) {
+                releaseIdle();
+                return 0;
+            }
+        }
+        if (appIn == null) appIn = BUFFERS.acquire(engine.getSession().getApplicationBufferSize());
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        needData = result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW;
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+        }
+        return 1;
+    }
+
+    private void closeInbound() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // Closed without close_notify, nothing left to read either way
+        }
+    }
+
+    private void runTasks() {
+        taskRunning = true;
+        tasks.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            taskRunning = false;
+            resume.run();
+        });
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // Wraps a record at a time and sends it; stops early when the socket is full or the handshake
+    // isn't done yet
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            long written = 0;
+            while (flushNet() && hasRemaining(srcs, offset, length)) {
+                int consumed = wrap(srcs, offset, length);
+                written += consumed;
+                if (consumed == 0 && netOut == null) break;
+            }
+            return written;
+        } finally {
+            if (closed) netOut = BUFFERS.release(netOut);
+            writeLock.unlock();
+        }
+    }
+
+    // Sends what TLS has to send on its own: the rest of the last write and handshake records.
+    // False if the socket is full.
+    boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            while (flushNet()) {
+                if (engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) return true;
+                wrap(NO_DATA, 0, 1);
+            }
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Something wrapped is still waiting for the socket
+    boolean wantsWrite() {
+        return netOut != null || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+    }
+
+    private boolean flushNet() throws IOException {
+        if (netOut == null) return true;
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) return false;
+        }
+        netOut = BUFFERS.release(netOut);
+        return true;
+    }
+
+    // One record into netOut, which is empty; returns the plaintext it took
+    private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        ByteBuffer out = BUFFERS.acquire(packetSize);
+        SSLEngineResult result;
+        while (true) {
+            result = engine.wrap(srcs, offset, length, out);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) break;
+            BUFFERS.release(out);
+            out = ByteBuffer.allocateDirect(Math.max(packetSize, out.capacity() * 2));
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+            BUFFERS.release(out);
+            throw new SSLException("TLS connection closed");
+        }
+        if (result.bytesProduced() == 0) {
+            BUFFERS.release(out);
+        } else {
+            netOut = out.flip();
+        }
+        return result.bytesConsumed();
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+        bigger.put(buffer.flip());
+        BUFFERS.release(buffer);
+        return bigger;
+    }
+
+    // Gives back the inbound buffers that hold nothing
+    private void releaseIdle() {
+        if (netIn != null && netIn.position() == 0) netIn = BUFFERS.release(netIn);
+        if (appIn != null && appIn.position() == 0) appIn = BUFFERS.release(appIn);
+    }
+
+    private void releaseInbound() {
+        netIn = BUFFERS.release(netIn);
+        appIn = BUFFERS.release(appIn);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Sends close_notify if the socket takes it right away, then closes. A buffer that another
+    // thread is using goes back to the pool when that thread is done with it.
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound();
+                    if (flushNet()) {
+                        wrap(NO_DATA, 0, 1);
+                        flushNet();
+                    }
+                } catch (IOException e) {
+                    // Closing anyway
+                } finally {
+                    netOut = BUFFERS.release(netOut);
+                    writeLock.unlock();
+                }
+            }
+        } finally {
+            channel.close();
+            if (readLock.tryLock()) {
+                try {
+                    releaseInbound();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        }
+    }
+
+    // Direct buffers of one size, shared by every connection
+    static final class BufferPool {
+        private final int size;
+        private final int max;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        BufferPool(int size, int max) {
+            this.size = size;
+            this.max = max;
+        }
+
+        ByteBuffer acquire(int minimum) {
+            if (minimum > size) return ByteBuffer.allocateDirect(minimum);
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) return ByteBuffer.allocateDirect(size);
+            count.decrementAndGet();
+            return buffer.clear();
+        }
+
+        // Always null, for buffer = pool.release(buffer)
+        ByteBuffer release(ByteBuffer buffer) {
+            if (buffer == null || buffer.capacity() != size) return null;
+            if (count.incrementAndGet() > max) {
+                count.decrementAndGet();
+                return null;
+            }
+            free.add(buffer);
+            return null;
+        }
+    }
+}